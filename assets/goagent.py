@@ -162,6 +162,41 @@ class DNSCacheUtil(object):
     '''DNSCache module, integrated with GAEProxy'''
 
     cache = {"127.0.0.1": 'localhost'}
+    # one connection kept open to the lookup service, the lock is only held
+    # for a single exchange on it so retries do not stall other connections
+    sock = None
+    sock_buffer = ''
+    lock = threading.Lock()
+
+    @staticmethod
+    def query(address):
+        with DNSCacheUtil.lock:
+            try:
+                if DNSCacheUtil.sock is None:
+                    sock = socket.socket(family=socket.AF_INET, type=socket.SOCK_STREAM)
+                    sock.settimeout(2)
+                    sock.connect(("127.0.0.1", 9090))
+                    DNSCacheUtil.sock = sock
+                    DNSCacheUtil.sock_buffer = ''
+                DNSCacheUtil.sock.sendall(address + "\r\n")
+                while "\n" not in DNSCacheUtil.sock_buffer:
+                    data = DNSCacheUtil.sock.recv(512)
+                    if not data:
+                        raise socket.error('closed')
+                    DNSCacheUtil.sock_buffer += data
+                line, DNSCacheUtil.sock_buffer = DNSCacheUtil.sock_buffer.split("\n", 1)
+                return line.strip()
+            except:
+                # reconnect next time, the connection may have been closed while idle
+                DNSCacheUtil.close()
+                raise
+
+    @staticmethod
+    def close():
+        if DNSCacheUtil.sock:
+            DNSCacheUtil.sock.close()
+        DNSCacheUtil.sock = None
+        DNSCacheUtil.sock_buffer = ''
 
     @staticmethod
     def getHost(address):
@@ -176,18 +211,11 @@ class DNSCacheUtil(object):
 
         host = None
 
-        sock = None
-        address_family = socket.AF_INET
         retry = 0
         while address not in DNSCacheUtil.cache:
             try:
-                sock = socket.socket(family=address_family, type=socket.SOCK_STREAM)
-                sock.settimeout(2)
-                sock.connect(("127.0.0.1", 9090))
-                sock.sendall(address + "\r\n")
-                host = sock.recv(512)
-                if host is not None and not host.startswith("null"):
-                    host = host.strip()
+                host = DNSCacheUtil.query(address)
+                if host and host != "null":
                     DNSCacheUtil.cache[address] = host
                     break
                 else:
@@ -197,17 +225,16 @@ class DNSCacheUtil(object):
                     else:
                         retry = retry + 1
                         continue
-            except socket.error as e:
-                if e[0] in (10060, 'timed out'):
-                    continue
+            except socket.error:
+                if retry > 3:
+                    host = None
+                    break
+                retry = retry + 1
             except Exception, e:
                 logging.error('reverse dns query exception: %s', e)
                 break
-            finally:
-                if sock:
-                    sock.close()
 
-        return host
+        return DNSCacheUtil.cache.get(address, host)
 
 class base92:
     """https://github.com/thenoviceoof/base92"""
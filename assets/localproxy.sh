@@ -222,5 +222,5 @@ www.253874.com =
 
 esac
  
-$DIR/python-cl $DIR/goagent.py
+$DIR/python-cl $DIR/goagent.py </dev/null >/dev/null 2>&1
 
@@ -37,7 +37,7 @@ redsocks {
 } 
 " > $DIR/redsocks.conf
 
-  $DIR/redsocks -p $DIR/redsocks.pid -c $DIR/redsocks.conf
+  $DIR/redsocks -p $DIR/redsocks.pid -c $DIR/redsocks.conf </dev/null >/dev/null 2>&1
   
   ;;
 stop)
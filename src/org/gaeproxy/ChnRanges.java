@@ -0,0 +1,176 @@
+package org.gaeproxy;
+
+import android.util.Log;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The ranges bypassed with the GFW list. They are merged into the fewest
+ * CIDR blocks, and where the kernel has ipset and the xt_set match they are
+ * loaded into one set, so that a new connection is classified by a single
+ * hashed match instead of walking one rule per range.
+ */
+public class ChnRanges {
+
+  private static final String TAG = "GAEProxy";
+
+  public static final String SET = "GAEPROXY_CHN";
+
+  private static final int TIMEOUT = 10 * 1000;
+
+  /** Whether the kernel takes the set match, null until probed */
+  private static Boolean supported = null;
+  /** Whether the set holds the ranges */
+  private static boolean loaded = false;
+
+  private ChnRanges() {
+  }
+
+  /**
+   * @param payload where to write the payload for ipset restore
+   * @return the bypass rules of the ranges, as rules of a service chain
+   */
+  public static synchronized List<String> rules(String[] ranges, File payload) {
+    long start = System.currentTimeMillis();
+    List<String> cidrs = aggregate(ranges);
+    List<String> rules = new ArrayList<String>();
+    if (load(cidrs, payload)) {
+      rules.add("-p tcp -m set --match-set " + SET + " dst -j ACCEPT");
+    } else {
+      for (String cidr : cidrs) {
+        rules.add("-p tcp -d " + cidr + " -j ACCEPT");
+      }
+    }
+    Log.d(TAG, "Bypassing " + ranges.length + " ranges as " + cidrs.size() + " blocks in "
+        + rules.size() + " rules, prepared in " + (System.currentTimeMillis() - start) + "ms");
+    return rules;
+  }
+
+  /**
+   * @return the command removing the set, to run after the rules using it,
+   *         the set is loaded again by the next {@link #rules}
+   */
+  public static synchronized String teardown() {
+    if (supported == null || !supported) return "";
+    loaded = false;
+    return "ipset destroy " + SET + "\n";
+  }
+
+  /** @return the smallest list of CIDR blocks covering the same addresses */
+  static List<String> aggregate(String[] ranges) {
+    List<long[]> parsed = new ArrayList<long[]>(ranges.length);
+    for (String range : ranges) {
+      long[] r = DNSBlackList.parseRange(range.trim());
+      if (r != null) {
+        parsed.add(r);
+      } else {
+        Log.w(TAG, "Malformed range: " + range);
+      }
+    }
+    long[][] sorted = parsed.toArray(new long[parsed.size()][]);
+    Arrays.sort(sorted, new Comparator<long[]>() {
+      @Override
+      public int compare(long[] a, long[] b) {
+        return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+      }
+    });
+
+    List<String> cidrs = new ArrayList<String>();
+    int i = 0;
+    while (i < sorted.length) {
+      long first = sorted[i][0];
+      long last = sorted[i][1];
+      // overlapping or adjacent ranges make one
+      for (i++; i < sorted.length && sorted[i][0] <= last + 1; i++) {
+        last = Math.max(last, sorted[i][1]);
+      }
+      split(first, last, cidrs);
+    }
+    return cidrs;
+  }
+
+  /** Cover first..last with the largest aligned blocks */
+  private static void split(long first, long last, List<String> cidrs) {
+    while (first <= last) {
+      int bits = first == 0 ? 32 : Long.numberOfTrailingZeros(first);
+      while (bits > 0 && first + (1L << bits) - 1 > last) {
+        bits--;
+      }
+      cidrs.add(toAddress(first) + "/" + (32 - bits));
+      first += 1L << bits;
+    }
+  }
+
+  private static String toAddress(long ip) {
+    return ((ip >>> 24) & 0xff) + "." + ((ip >>> 16) & 0xff) + "." + ((ip >>> 8) & 0xff) + "."
+        + (ip & 0xff);
+  }
+
+  /** @return true if the set holds the blocks and the kernel matches on it */
+  private static boolean load(List<String> cidrs, File payload) {
+    if (!Utils.isRoot()) return false;
+    if (supported == null) supported = probe();
+    if (!supported) return false;
+    if (loaded) return true;
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("create ").append(SET).append(" hash:net\n");
+    sb.append("flush ").append(SET).append('\n');
+    for (String cidr : cidrs) {
+      sb.append("add ").append(SET).append(' ').append(cidr).append('\n');
+    }
+    if (!write(payload, sb.toString())) return false;
+    long start = System.currentTimeMillis();
+    int exitcode = Utils.runRootScript("ipset -exist restore < " + payload.getPath(), TIMEOUT);
+    payload.delete();
+    if (exitcode != 0) {
+      Log.w(TAG, "ipset restore failed with " + exitcode + ", bypassing with one rule per block");
+      return false;
+    }
+    Log.d(TAG, "Loaded " + cidrs.size() + " blocks into " + SET + " in "
+        + (System.currentTimeMillis() - start) + "ms");
+    loaded = true;
+    return true;
+  }
+
+  /** @return true if ipset runs and iptables takes a rule matching on a set */
+  private static boolean probe() {
+    String iptables = Utils.getIptables();
+    String probe = "GAEPROXY_PROBE";
+    String script = "ipset -exist create " + SET + " hash:net || exit 1\n"
+        + iptables + " -t nat -N " + probe + "\n"
+        + iptables + " -t nat -A " + probe + " -m set --match-set " + SET + " dst -j RETURN\n"
+        + "r=$?\n"
+        + iptables + " -t nat -F " + probe + "\n"
+        + iptables + " -t nat -X " + probe + "\n"
+        + "exit $r";
+    boolean result = Utils.runRootScript(script, TIMEOUT) == 0;
+    Log.d(TAG, "ipset " + (result ? "supported" : "not supported"));
+    return result;
+  }
+
+  private static boolean write(File file, String content) {
+    FileWriter out = null;
+    try {
+      out = new FileWriter(file);
+      out.write(content);
+      return true;
+    } catch (IOException e) {
+      Log.e(TAG, "Cannot write " + file, e);
+      return false;
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException ignored) {
+          // Nothing
+        }
+      }
+    }
+  }
+}
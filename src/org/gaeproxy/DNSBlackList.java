@@ -0,0 +1,333 @@
+package org.gaeproxy;
+
+import android.content.Context;
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Addresses the GFW answers with for the names it poisons, kept as sorted
+ * and merged IPv4 ranges for a binary search. A lone address that keeps
+ * showing up in untrusted answers for unrelated sites while trusted
+ * upstreams disagree is learned at runtime and saved for the next start.
+ * Learned addresses expire, so that one which was wrongly learned, or was
+ * handed to a real host since, is forgiven.
+ */
+public class DNSBlackList {
+
+  private static final String TAG = "GAEDNSProxy";
+
+  private static final String[] BLACK_LIST = {
+      "4.36.66.178", "8.7.198.45", "37.61.54.158", "46.82.174.68", "59.24.3.173", "64.33.88.161",
+      "64.33.99.47", "64.66.163.251", "65.104.202.252", "65.160.219.113", "66.45.252.237",
+      "72.14.205.104", "72.14.205.99", "78.16.49.15", "93.46.8.89", "128.121.126.139",
+      "159.106.121.75", "169.132.13.103", "192.67.198.6", "202.106.1.2", "202.181.7.85",
+      "203.161.230.171", "207.12.88.98", "208.56.31.43", "209.145.54.50", "209.220.30.174",
+      "209.36.73.33", "211.94.66.147", "213.169.251.35", "216.221.188.182", "216.234.179.13",
+      "59.24.3.173"
+  };
+
+  private static final String LEARNED_FILE = "poisoned_ips";
+  /** Unrelated sites an address must be suspected for before it is learned */
+  private static final int LEARN_THRESHOLD = 5;
+  private static final int MAX_SUSPECTS = 1024;
+  /** How long a learned address is kept, in ms */
+  private static final long LEARNED_EXPIRE = 7 * 24 * 3600 * 1000L;
+
+  /**
+   * Start and end of each range, interleaved, with the sign bit flipped so
+   * that the ints compare unsigned
+   */
+  private static volatile int[] table = new int[0];
+
+  /** Learned ranges as "address/prefix", with the time each one expires */
+  private static final LinkedHashMap<String, Long> learned = new LinkedHashMap<String, Long>();
+  /** Earliest expiry of the learned ranges */
+  private static volatile long nextExpiry = Long.MAX_VALUE;
+  /** Sites each suspect address was seen for */
+  private static final HashMap<String, HashSet<String>> suspects =
+      new HashMap<String, HashSet<String>>();
+  private static File learnedFile = null;
+
+  static {
+    rebuild();
+  }
+
+  /** Add the addresses learned in earlier runs, once */
+  public static synchronized void load(Context ctx) {
+    if (learnedFile != null) return;
+    learnedFile = new File(ctx.getFilesDir(), LEARNED_FILE);
+    if (!learnedFile.exists()) return;
+    BufferedReader in = null;
+    try {
+      in = new BufferedReader(new FileReader(learnedFile));
+      long now = System.currentTimeMillis();
+      String line;
+      while ((line = in.readLine()) != null) {
+        // "range expires", the expiry is missing from the lines of older versions
+        String[] fields = line.trim().split("\\s+");
+        if (parseRange(fields[0]) == null) continue;
+        long expires = now + LEARNED_EXPIRE;
+        if (fields.length > 1) {
+          try {
+            expires = Long.parseLong(fields[1]);
+          } catch (NumberFormatException e) {
+            continue;
+          }
+        }
+        learned.put(fields[0], expires);
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Cannot read " + learnedFile, e);
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException ignored) {
+          // Nothing
+        }
+      }
+    }
+    expire(System.currentTimeMillis());
+    save();
+    rebuild();
+  }
+
+  public static boolean contains(String addr) {
+    long ip = parseAddress(addr.trim());
+    return ip >= 0 && contains((int) ip ^ Integer.MIN_VALUE);
+  }
+
+  private static boolean contains(int key) {
+    int[] t = table;
+    // last range starting at or before the key
+    int lo = 0;
+    int hi = t.length / 2 - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (t[mid * 2] <= key) {
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return hi >= 0 && key <= t[hi * 2 + 1];
+  }
+
+  /** @return true if any address of a '|' separated answer is poisoned */
+  public static boolean isPoisoned(String answer) {
+    for (String addr : answer.split("\\|")) {
+      if (contains(addr)) return true;
+    }
+    return false;
+  }
+
+  /** @return true if any of the raw IPv4 addresses, 4 bytes each, is poisoned */
+  public static boolean isPoisoned(byte[] ips) {
+    for (int i = 0; i + 4 <= ips.length; i += 4) {
+      int ip = ((ips[i] & 0xff) << 24) | ((ips[i + 1] & 0xff) << 16) | ((ips[i + 2] & 0xff) << 8)
+          | (ips[i + 3] & 0xff);
+      if (contains(ip ^ Integer.MIN_VALUE)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Compare an untrusted answer with a trusted one of the same domain. A
+   * forged answer is a single address, which becomes a suspect when the
+   * trusted answer does not have it, and is learned once it was seen for
+   * several unrelated sites. Geo-DNS and CDN answers usually carry several
+   * addresses, or only vary across the names of one site.
+   */
+  public static void compare(String domain, String untrusted, String trusted) {
+    long now = System.currentTimeMillis();
+    if (now >= nextExpiry) forget(now);
+    String[] addrs = untrusted.split("\\|");
+    if (addrs.length != 1 || parseAddress(addrs[0]) < 0) return;
+    for (String addr : trusted.split("\\|")) {
+      // the same view, or a trusted answer that is itself poisoned
+      if (addr.equals(addrs[0]) || contains(addr)) return;
+    }
+    suspect(addrs[0], site(domain));
+  }
+
+  private static synchronized void suspect(String addr, String site) {
+    if (contains(addr)) return;
+    HashSet<String> sites = suspects.get(addr);
+    if (sites == null) {
+      if (suspects.size() >= MAX_SUSPECTS) suspects.clear();
+      sites = new HashSet<String>();
+      suspects.put(addr, sites);
+    }
+    sites.add(site);
+    if (sites.size() >= LEARN_THRESHOLD) {
+      suspects.remove(addr);
+      learn(addr);
+    }
+  }
+
+  /** Add an address or range until it expires, saving it for the next start */
+  public static synchronized void learn(String range) {
+    if (parseRange(range) == null) return;
+    Log.w(TAG, "Learned poisoned address " + range);
+    long expires = System.currentTimeMillis() + LEARNED_EXPIRE;
+    learned.put(range, expires);
+    nextExpiry = Math.min(nextExpiry, expires);
+    rebuild();
+    save();
+  }
+
+  /** Drop the learned ranges that expired */
+  private static synchronized void forget(long now) {
+    if (!expire(now)) return;
+    rebuild();
+    save();
+  }
+
+  /** @return true if any learned range expired, updating the next expiry */
+  private static boolean expire(long now) {
+    boolean changed = false;
+    long next = Long.MAX_VALUE;
+    Iterator<Map.Entry<String, Long>> it = learned.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Long> entry = it.next();
+      if (entry.getValue() <= now) {
+        Log.d(TAG, "Forgot poisoned address " + entry.getKey());
+        it.remove();
+        changed = true;
+      } else {
+        next = Math.min(next, entry.getValue());
+      }
+    }
+    nextExpiry = next;
+    return changed;
+  }
+
+  /** Write the learned ranges for the next start */
+  private static void save() {
+    if (learnedFile == null) return;
+    FileWriter out = null;
+    try {
+      out = new FileWriter(learnedFile);
+      for (Map.Entry<String, Long> entry : learned.entrySet()) {
+        out.write(entry.getKey() + " " + entry.getValue() + "\n");
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Cannot write " + learnedFile, e);
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException ignored) {
+          // Nothing
+        }
+      }
+    }
+  }
+
+  /** Sort and merge the ranges into the lookup arrays */
+  private static void rebuild() {
+    List<long[]> parsed = new ArrayList<long[]>(BLACK_LIST.length + learned.size());
+    for (String addr : BLACK_LIST) {
+      parsed.add(parseRange(addr));
+    }
+    for (String range : learned.keySet()) {
+      long[] r = parseRange(range);
+      if (r != null) parsed.add(r);
+    }
+    long[][] sorted = parsed.toArray(new long[parsed.size()][]);
+    Arrays.sort(sorted, new Comparator<long[]>() {
+      @Override
+      public int compare(long[] a, long[] b) {
+        return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+      }
+    });
+
+    int[] t = new int[sorted.length * 2];
+    int n = 0;
+    long end = -1;
+    for (long[] r : sorted) {
+      if (n > 0 && r[0] <= end + 1) {
+        // overlapping or adjacent, extend the previous range
+        if (r[1] > end) {
+          end = r[1];
+          t[n - 1] = (int) end ^ Integer.MIN_VALUE;
+        }
+        continue;
+      }
+      t[n++] = (int) r[0] ^ Integer.MIN_VALUE;
+      t[n++] = (int) r[1] ^ Integer.MIN_VALUE;
+      end = r[1];
+    }
+    table = Arrays.copyOf(t, n);
+  }
+
+  /**
+   * @return the site a domain belongs to, its last two labels, or three
+   *         under a country code second level like "com.cn"
+   */
+  static String site(String domain) {
+    int last = domain.lastIndexOf('.');
+    if (last <= 0) return domain;
+    int second = domain.lastIndexOf('.', last - 1);
+    if (second < 0) return domain;
+    if (domain.length() - last - 1 == 2 && last - second - 1 <= 3) {
+      int third = domain.lastIndexOf('.', second - 1);
+      return third < 0 ? domain : domain.substring(third + 1);
+    }
+    return domain.substring(second + 1);
+  }
+
+  /** @return the first and last address of "a.b.c.d[/prefix]", or null */
+  static long[] parseRange(String range) {
+    int slash = range.indexOf('/');
+    int prefix = 32;
+    if (slash >= 0) {
+      try {
+        prefix = Integer.parseInt(range.substring(slash + 1));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      if (prefix < 0 || prefix > 32) return null;
+      range = range.substring(0, slash);
+    }
+    long ip = parseAddress(range);
+    if (ip < 0) return null;
+    long size = 1L << (32 - prefix);
+    long first = ip & ~(size - 1) & 0xffffffffL;
+    return new long[] { first, first + size - 1 };
+  }
+
+  /** @return the IPv4 address as an unsigned value, or -1 if malformed */
+  static long parseAddress(String addr) {
+    long ip = 0;
+    int octets = 0;
+    int value = -1;
+    for (int i = 0; i <= addr.length(); i++) {
+      char c = i < addr.length() ? addr.charAt(i) : '.';
+      if (c == '.') {
+        if (value < 0 || ++octets > 4) return -1;
+        ip = (ip << 8) | value;
+        value = -1;
+      } else if (c >= '0' && c <= '9') {
+        value = (value < 0 ? 0 : value * 10) + (c - '0');
+        if (value > 255) return -1;
+      } else {
+        return -1;
+      }
+    }
+    return octets == 4 ? ip : -1;
+  }
+}
@@ -0,0 +1,47 @@
+package org.gaeproxy;
+
+import android.util.Log;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An upstream answering with a blocking lookup, run on the executor given
+ * to {@link #resolve}. The callback is called exactly once whatever the
+ * lookup throws, so a race always finishes.
+ */
+public abstract class DNSBlockingUpstream extends DNSUpstream {
+
+  private static final String TAG = "GAEDNSProxy";
+
+  protected DNSBlockingUpstream(String name) {
+    super(name);
+  }
+
+  /** @return the answer in the relay format, or null */
+  protected abstract String query(String domain) throws IOException;
+
+  @Override
+  public void resolve(final String domain, Executor executor, final Callback callback) {
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          String answer = null;
+          try {
+            answer = query(domain);
+          } catch (IOException e) {
+            // a failure like any other, left to the next upstream
+          } catch (RuntimeException e) {
+            Log.w(TAG, "Lookup of " + domain + " failed on " + name, e);
+          } finally {
+            callback.onResult(DNSBlockingUpstream.this, answer);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // shutting down
+      callback.onResult(this, null);
+    }
+  }
+}
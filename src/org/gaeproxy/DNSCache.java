@@ -0,0 +1,160 @@
+package org.gaeproxy;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded in-memory LRU cache of resolved addresses, the first tier in front
+ * of the dnsresponse table. Hits only touch this map; request counters are
+ * kept on the entries and drained by the caller for persistence.
+ */
+public class DNSCache {
+
+  private static final byte[] NO_ADDRESS = new byte[0];
+
+  public static class Entry {
+    public final String domain;
+    /** Response code, an error for negative entries */
+    public final int rcode;
+    /** Raw IPv4 addresses of the answer, 4 bytes each */
+    public final byte[] ips;
+    /** Raw IPv6 addresses of the answer, 16 bytes each */
+    public final byte[] ipv6;
+    public final long expires;
+    /** The upstream gave no TTL, clients only get a short one */
+    public final boolean ttlUnknown;
+
+    /** Index of the first address in the next response */
+    private int rotation = 0;
+
+    /** Hits not yet written back to the database */
+    private int hits = 0;
+    private long lastHit = 0;
+
+    public Entry(String domain, byte[] ips, byte[] ipv6, long expires) {
+      this(domain, ips, ipv6, expires, false);
+    }
+
+    public Entry(String domain, byte[] ips, byte[] ipv6, long expires, boolean ttlUnknown) {
+      this.domain = domain;
+      this.rcode = DNSMessage.RCODE_NOERROR;
+      this.ips = ips;
+      this.ipv6 = ipv6;
+      this.expires = expires;
+      this.ttlUnknown = ttlUnknown;
+    }
+
+    /** Negative entry, answered with the given response code */
+    public Entry(String domain, int rcode, long expires) {
+      this.domain = domain;
+      this.rcode = rcode;
+      this.ips = NO_ADDRESS;
+      this.ipv6 = NO_ADDRESS;
+      this.expires = expires;
+      this.ttlUnknown = false;
+    }
+
+    public boolean isNegative() {
+      return rcode != DNSMessage.RCODE_NOERROR;
+    }
+
+    /** @return the rotation of this response, advancing it for the next one */
+    public int nextRotation() {
+      // racy on purpose, a lost step only repeats an order
+      return rotation++ & Integer.MAX_VALUE;
+    }
+  }
+
+  /** Request counter of a domain waiting to be persisted */
+  public static class Hits {
+    public final String domain;
+    public final int count;
+    public final long lastHit;
+
+    Hits(Entry entry) {
+      this(entry.domain, entry.hits, entry.lastHit);
+    }
+
+    Hits(String domain, int count, long lastHit) {
+      this.domain = domain;
+      this.count = count;
+      this.lastHit = lastHit;
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> entries;
+  private final List<Hits> evicted = new ArrayList<Hits>();
+
+  public DNSCache(final int capacity) {
+    entries = new LinkedHashMap<String, Entry>(capacity, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, DNSCache.Entry> eldest) {
+        if (size() <= capacity) return false;
+        if (eldest.getValue().hits > 0) evicted.add(new Hits(eldest.getValue()));
+        return true;
+      }
+    };
+  }
+
+  /** @return the live entry for the domain, or null if missing or expired */
+  public synchronized Entry get(String domain, long now) {
+    Entry entry = entries.get(domain);
+    if (entry == null) return null;
+    if (entry.expires < now) {
+      entries.remove(domain);
+      return null;
+    }
+    entry.hits++;
+    entry.lastHit = now;
+    return entry;
+  }
+
+  /** Count a hit on a domain answered from outside this cache */
+  public synchronized void addHit(String domain, long now) {
+    evicted.add(new Hits(domain, 1, now));
+  }
+
+  public synchronized void put(Entry entry) {
+    entries.put(entry.domain, entry);
+  }
+
+  public synchronized void remove(String domain) {
+    entries.remove(domain);
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /** @return the live entries, most recently used last */
+  public synchronized List<Entry> snapshot(long now) {
+    List<Entry> result = new ArrayList<Entry>(entries.size());
+    for (Entry entry : entries.values()) {
+      if (entry.expires >= now) result.add(entry);
+    }
+    return result;
+  }
+
+  /**
+   * Collect the hits counted since the last call, including those of evicted
+   * entries, and reset the counters.
+   */
+  public synchronized List<Hits> drainHits() {
+    List<Hits> result = new ArrayList<Hits>(evicted);
+    evicted.clear();
+    for (Entry entry : entries.values()) {
+      if (entry.hits > 0) {
+        result.add(new Hits(entry));
+        entry.hits = 0;
+      }
+    }
+    return result;
+  }
+
+  /** Give back drained hits that could not be persisted, for the next drain */
+  public synchronized void restoreHits(List<Hits> hits) {
+    evicted.addAll(hits);
+  }
+}
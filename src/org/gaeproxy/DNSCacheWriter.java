@@ -0,0 +1,121 @@
+package org.gaeproxy;
+
+import android.util.Log;
+import com.j256.ormlite.dao.Dao;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.gaeproxy.db.DNSResponse;
+import org.gaeproxy.db.DatabaseHelper;
+
+/**
+ * Write-behind queue for the dnsresponse table. New answers and the hit
+ * counters of the memory cache are collected and flushed periodically in a
+ * single transaction, off the resolving threads.
+ */
+public class DNSCacheWriter {
+
+  private static final String TAG = "GAEDNSProxy";
+
+  private static final long FLUSH_INTERVAL = 10;
+
+  private final DatabaseHelper helper;
+  private final DNSCache memoryCache;
+
+  /** Answers waiting to be written, the latest one per domain */
+  private final HashMap<String, DNSResponse> pending = new HashMap<String, DNSResponse>();
+
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "DNSCacheWriter");
+          t.setDaemon(true);
+          t.setPriority(Thread.MIN_PRIORITY);
+          return t;
+        }
+      });
+
+  public DNSCacheWriter(DatabaseHelper helper, DNSCache memoryCache) {
+    this.helper = helper;
+    this.memoryCache = memoryCache;
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+      }
+    }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.SECONDS);
+  }
+
+  /** Queue a response to be created or updated */
+  public void add(DNSResponse response) {
+    synchronized (pending) {
+      pending.put(response.getRequest(), response);
+    }
+  }
+
+  /** @return the queued response of the domain, or null */
+  public DNSResponse get(String domain) {
+    synchronized (pending) {
+      return pending.get(domain);
+    }
+  }
+
+  /** Write everything queued so far in one transaction */
+  public synchronized void flush() {
+    final Map<String, DNSResponse> responses;
+    synchronized (pending) {
+      responses = new HashMap<String, DNSResponse>(pending);
+    }
+    final List<DNSCache.Hits> hits = memoryCache.drainHits();
+    if (responses.isEmpty() && hits.isEmpty()) return;
+
+    try {
+      final Dao<DNSResponse, String> dnsCacheDao = helper.getDNSCacheDao();
+      dnsCacheDao.callBatchTasks(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          for (DNSCache.Hits hit : hits) {
+            DNSResponse resp = responses.get(hit.domain);
+            if (resp == null) {
+              resp = dnsCacheDao.queryForId(hit.domain);
+              if (resp == null) continue;
+              responses.put(hit.domain, resp);
+            }
+            resp.addReqTimes(hit.count, hit.lastHit);
+          }
+          for (DNSResponse resp : responses.values()) {
+            dnsCacheDao.createOrUpdate(resp);
+          }
+          return null;
+        }
+      });
+    } catch (Exception e) {
+      Log.e(TAG, "Cannot flush DNS cache", e);
+      memoryCache.restoreHits(hits);
+      return;
+    }
+
+    synchronized (pending) {
+      for (Map.Entry<String, DNSResponse> entry : responses.entrySet()) {
+        if (pending.get(entry.getKey()) == entry.getValue()) pending.remove(entry.getKey());
+      }
+    }
+  }
+
+  /** Stop the periodic flush and write out what is left */
+  public void close() {
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException ignored) {
+      // Nothing
+    }
+    flush();
+  }
+}
@@ -0,0 +1,164 @@
+package org.gaeproxy;
+
+import android.util.Log;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+
+/**
+ * Hosts-style overrides answered before the cache. Each line is an address
+ * list, '|' separated, followed by the names it answers for, either exact
+ * or "*.suffix" for every name below the suffix. Several lines for a name
+ * add up. Names are kept in a trie of their labels, last label first, so
+ * that a lookup walks one node per label. An exact name wins over the
+ * wildcards, and the longest wildcard suffix wins over the shorter ones.
+ */
+public class DNSHosts {
+
+  private static final String TAG = "GAEDNSProxy";
+
+  /** The answer of an override */
+  public static class Host {
+    /** Addresses separated by '|' */
+    public final String address;
+    public final DNSCache.Entry entry;
+
+    Host(String address, DNSCache.Entry entry) {
+      this.address = address;
+      this.entry = entry;
+    }
+  }
+
+  private static class Node {
+    HashMap<String, Node> children;
+    Host exact;
+    Host wildcard;
+
+    Node child(String label) {
+      if (children == null) children = new HashMap<String, Node>();
+      Node node = children.get(label);
+      if (node == null) {
+        node = new Node();
+        children.put(label, node);
+      }
+      return node;
+    }
+  }
+
+  private final Node root = new Node();
+  private int size = 0;
+
+  /** Compile the lines of a hosts table, skipping malformed ones */
+  public static DNSHosts parse(String text) {
+    DNSHosts hosts = new DNSHosts();
+    if (text == null) return hosts;
+    for (String line : text.split("\n")) {
+      int comment = line.indexOf('#');
+      if (comment >= 0) line = line.substring(0, comment);
+      String[] fields = line.trim().split("\\s+");
+      if (fields.length < 2) continue;
+      for (int i = 1; i < fields.length; i++) {
+        if (!hosts.put(fields[i], fields[0])) {
+          Log.w(TAG, "Malformed hosts line: " + line);
+          break;
+        }
+      }
+    }
+    return hosts;
+  }
+
+  /**
+   * Add an override, its addresses are appended to those already there
+   *
+   * @param name an exact name, or "*.suffix"
+   * @return false if the name or an address is malformed
+   */
+  public boolean put(String name, String address) {
+    name = name.toLowerCase();
+    if (name.endsWith(".")) name = name.substring(0, name.length() - 1);
+    boolean wildcard = name.equals("*") || name.startsWith("*.");
+    if (wildcard) name = name.substring(Math.min(2, name.length()));
+    if (name.indexOf('*') >= 0 || name.startsWith(".") || name.indexOf("..") >= 0) return false;
+    if (!wildcard && name.length() == 0) return false;
+
+    Node node = root;
+    int end = name.length();
+    while (end > 0) {
+      int start = name.lastIndexOf('.', end - 1) + 1;
+      node = node.child(name.substring(start, end));
+      end = start - 1;
+    }
+
+    Host old = wildcard ? node.wildcard : node.exact;
+    if (old != null) address = old.address + "|" + address;
+    Host host = compile(name, address);
+    if (host == null) return false;
+    if (wildcard) {
+      node.wildcard = host;
+    } else {
+      node.exact = host;
+    }
+    if (old == null) size++;
+    return true;
+  }
+
+  /** @return the override of the domain, or null */
+  public Host lookup(String domain) {
+    if (size == 0) return null;
+    domain = domain.toLowerCase();
+    if (domain.endsWith(".")) domain = domain.substring(0, domain.length() - 1);
+    Node node = root;
+    Host best = null;
+    int end = domain.length();
+    while (end > 0) {
+      // the wildcard of a node only covers the names strictly below it
+      if (node.wildcard != null) best = node.wildcard;
+      if (node.children == null) return best;
+      int start = domain.lastIndexOf('.', end - 1) + 1;
+      node = node.children.get(domain.substring(start, end));
+      if (node == null) return best;
+      end = start - 1;
+    }
+    return node.exact != null ? node.exact : best;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /** @return the parsed addresses, or null if one is malformed */
+  private static Host compile(String name, String address) {
+    String[] addrs = address.split("\\|");
+    byte[] ips = new byte[addrs.length * 4];
+    byte[] ipv6 = new byte[addrs.length * 16];
+    int v4 = 0;
+    int v6 = 0;
+    for (String addr : addrs) {
+      if (addr.indexOf(':') >= 0) {
+        // only literals, never trigger a lookup
+        if (!addr.matches("[0-9a-fA-F:.]+")) return null;
+        try {
+          InetAddress inet = InetAddress.getByName(addr);
+          if (!(inet instanceof Inet6Address)) return null;
+          System.arraycopy(inet.getAddress(), 0, ipv6, v6 * 16, 16);
+          v6++;
+        } catch (UnknownHostException e) {
+          return null;
+        }
+      } else {
+        long ip = DNSBlackList.parseAddress(addr);
+        if (ip < 0) return null;
+        for (int i = 0; i < 4; i++) {
+          ips[v4 * 4 + i] = (byte) (ip >>> (24 - i * 8));
+        }
+        v4++;
+      }
+    }
+    byte[] v4bytes = new byte[v4 * 4];
+    System.arraycopy(ips, 0, v4bytes, 0, v4bytes.length);
+    byte[] v6bytes = new byte[v6 * 16];
+    System.arraycopy(ipv6, 0, v6bytes, 0, v6bytes.length);
+    return new Host(address, new DNSCache.Entry(name, v4bytes, v6bytes, Long.MAX_VALUE));
+  }
+}
@@ -0,0 +1,341 @@
+package org.gaeproxy;
+
+/**
+ * Allocation-light reader and writer of RFC 1035 messages.
+ *
+ * A request is parsed in place on the receive buffer: the header, every
+ * question (compression pointers included) and an EDNS0 OPT record in the
+ * additional section, all bounds checked. Responses are written into a
+ * caller supplied buffer which can be reused between requests. One instance
+ * holds the state of one request, so each worker keeps its own.
+ *
+ * Reference to:
+ *
+ * DOMAIN NAMES - IMPLEMENTATION AND SPECIFICATION
+ * http://www.ietf.org/rfc/rfc1035.txt
+ *
+ * Extension Mechanisms for DNS (EDNS(0))
+ * http://www.ietf.org/rfc/rfc6891.txt
+ */
+public class DNSMessage {
+
+  public static final int TYPE_A = 1;
+  public static final int TYPE_PTR = 12;
+  public static final int TYPE_AAAA = 28;
+  public static final int TYPE_OPT = 41;
+  public static final int TYPE_ANY = 255;
+  public static final int CLASS_IN = 1;
+
+  public static final int RCODE_NOERROR = 0;
+  public static final int RCODE_FORMERR = 1;
+  public static final int RCODE_SERVFAIL = 2;
+  public static final int RCODE_NXDOMAIN = 3;
+  public static final int RCODE_NOTIMP = 4;
+
+  public static final int HEADER_LEN = 12;
+  /** Largest UDP response without EDNS0 */
+  public static final int MAX_UDP_SIZE = 512;
+  /** UDP payload size we advertise in our OPT record */
+  public static final int EDNS_UDP_SIZE = 1024;
+  /** Largest message over TCP, bound by the 2 byte length prefix */
+  public static final int MAX_TCP_SIZE = 65535;
+
+  private static final int MAX_NAME_LEN = 255;
+  private static final int MAX_POINTERS = 16;
+  private static final int FLAG_QR = 0x8000;
+  private static final int FLAG_TC = 0x0200;
+  private static final int FLAG_RD = 0x0100;
+  private static final int FLAG_RA = 0x0080;
+  private static final int OPCODE_MASK = 0x7800;
+
+  private byte[] data;
+  private int offset;
+  private int length;
+
+  private int id;
+  private int flags;
+  private int qdCount;
+  private int anCount;
+  private int nsCount;
+  private int arCount;
+
+  /** Offset and end of the first question, absolute in data */
+  private int questionStart;
+  private int questionEnd;
+  private int questionType;
+  private int questionClass;
+
+  /** First question name, lower cased, without the trailing dot */
+  private final char[] name = new char[MAX_NAME_LEN];
+  private int nameLength;
+
+  private boolean hasOpt;
+  private int optPayloadSize;
+
+  /**
+   * Parse a message in place. The buffer must stay untouched as long as this
+   * message is used to write the response.
+   *
+   * @return false if the message is malformed
+   */
+  public boolean parse(byte[] data, int offset, int length) {
+    this.data = data;
+    this.offset = offset;
+    this.length = length;
+    hasOpt = false;
+    optPayloadSize = 0;
+    nameLength = 0;
+
+    if (length < HEADER_LEN || offset < 0 || offset + length > data.length) return false;
+
+    id = readShort(offset);
+    flags = readShort(offset + 2);
+    qdCount = readShort(offset + 4);
+    anCount = readShort(offset + 6);
+    nsCount = readShort(offset + 8);
+    arCount = readShort(offset + 10);
+
+    if (qdCount == 0) return false;
+
+    int pos = offset + HEADER_LEN;
+    questionStart = pos;
+    for (int i = 0; i < qdCount; i++) {
+      pos = readName(pos, i == 0);
+      if (pos < 0 || pos + 4 > offset + length) return false;
+      if (i == 0) {
+        questionType = readShort(pos);
+        questionClass = readShort(pos + 2);
+        questionEnd = pos + 4;
+      }
+      pos += 4;
+    }
+
+    // skip the answer and authority sections
+    for (int i = 0; i < anCount + nsCount; i++) {
+      pos = skipRecord(pos);
+      if (pos < 0) return false;
+    }
+
+    // look for EDNS0 in the additional section
+    for (int i = 0; i < arCount; i++) {
+      int start = readName(pos, false);
+      if (start < 0 || start + 10 > offset + length) return false;
+      if (readShort(start) == TYPE_OPT) {
+        hasOpt = true;
+        optPayloadSize = readShort(start + 2);
+      }
+      pos = skipRecord(pos);
+      if (pos < 0) return false;
+    }
+
+    return true;
+  }
+
+  /** @return true for a standard query, the only kind we answer */
+  public boolean isQuery() {
+    return (flags & FLAG_QR) == 0 && (flags & OPCODE_MASK) == 0;
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public int getQuestionCount() {
+    return qdCount;
+  }
+
+  public int getQuestionType() {
+    return questionType;
+  }
+
+  public int getQuestionClass() {
+    return questionClass;
+  }
+
+  /** @return the name of the first question */
+  public String getQuestionName() {
+    return new String(name, 0, nameLength);
+  }
+
+  public boolean hasOpt() {
+    return hasOpt;
+  }
+
+  /** @return the largest response the client accepts over UDP */
+  public int getMaxResponseSize() {
+    if (!hasOpt) return MAX_UDP_SIZE;
+    int size = Math.max(optPayloadSize, MAX_UDP_SIZE);
+    return Math.min(size, EDNS_UDP_SIZE);
+  }
+
+  /** @return the room for the header and answers, leaving space for OPT */
+  public int getAnswerLimit() {
+    return getAnswerLimit(getMaxResponseSize());
+  }
+
+  /** @return the room for the header and answers in a response of maxSize */
+  public int getAnswerLimit(int maxSize) {
+    return maxSize - (hasOpt ? 11 : 0);
+  }
+
+  /** @return the buffer size needed for a response with the given answers */
+  public int getResponseSize(int answers, int rdataLength) {
+    return HEADER_LEN + (questionEnd - questionStart) + answers * 12 + rdataLength + 11;
+  }
+
+  /**
+   * Write the header and the first question of the response.
+   *
+   * @return the position to append answers at
+   */
+  public int writeResponse(byte[] out, int rcode) {
+    int respFlags = FLAG_QR | FLAG_RA | (flags & FLAG_RD) | (rcode & 0xf);
+    writeShort(out, 0, id);
+    writeShort(out, 2, respFlags);
+    writeShort(out, 4, 1);
+    writeShort(out, 6, 0);
+    writeShort(out, 8, 0);
+    writeShort(out, 10, 0);
+    int questionLength = questionEnd - questionStart;
+    System.arraycopy(data, questionStart, out, HEADER_LEN, questionLength);
+    return HEADER_LEN + questionLength;
+  }
+
+  /**
+   * Write a header-only error response to a request that is not a query we
+   * parsed, echoing its ID, opcode and RD flag: NOTIMP for another opcode,
+   * FORMERR otherwise.
+   *
+   * @return the length of the response, or -1 if the request gets none
+   *         because it has no header or is itself a response
+   */
+  public static int writeError(byte[] data, int offset, int length, byte[] out) {
+    if (length < HEADER_LEN || offset < 0 || offset + length > data.length) return -1;
+    if (out.length < HEADER_LEN) return -1;
+    int reqFlags = readShort(data, offset + 2);
+    if ((reqFlags & FLAG_QR) != 0) return -1;
+    int rcode = (reqFlags & OPCODE_MASK) != 0 ? RCODE_NOTIMP : RCODE_FORMERR;
+    writeShort(out, 0, readShort(data, offset));
+    writeShort(out, 2, FLAG_QR | FLAG_RA | (reqFlags & (OPCODE_MASK | FLAG_RD)) | rcode);
+    for (int pos = 4; pos < HEADER_LEN; pos += 2) {
+      writeShort(out, pos, 0);
+    }
+    return HEADER_LEN;
+  }
+
+  /**
+   * Append an address record for the first question, A for 4 bytes of
+   * address and AAAA for 16 bytes.
+   *
+   * @return the new position, or -1 if the record does not fit in limit
+   * bytes, in which case the response is marked as truncated
+   */
+  public int writeAddress(byte[] out, int pos, int limit, byte[] addr, int addrOffset,
+      int addrLength, long ttl) {
+    int end = pos + 12 + addrLength;
+    if (end > limit || end > out.length) {
+      writeShort(out, 2, readShort(out, 2) | FLAG_TC);
+      return -1;
+    }
+    // pointer to the question name
+    out[pos] = (byte) 0xc0;
+    out[pos + 1] = (byte) HEADER_LEN;
+    writeShort(out, pos + 2, addrLength == 16 ? TYPE_AAAA : TYPE_A);
+    writeShort(out, pos + 4, CLASS_IN);
+    writeInt(out, pos + 6, ttl);
+    writeShort(out, pos + 10, addrLength);
+    System.arraycopy(addr, addrOffset, out, pos + 12, addrLength);
+    writeShort(out, 6, readShort(out, 6) + 1);
+    return end;
+  }
+
+  /**
+   * Finish the response, echoing EDNS0 if the request carried it.
+   *
+   * @return the length of the response
+   */
+  public int finish(byte[] out, int pos) {
+    if (hasOpt && pos + 11 <= out.length) {
+      out[pos] = 0;
+      writeShort(out, pos + 1, TYPE_OPT);
+      writeShort(out, pos + 3, EDNS_UDP_SIZE);
+      writeInt(out, pos + 5, 0);
+      writeShort(out, pos + 9, 0);
+      writeShort(out, 10, 1);
+      pos += 11;
+    }
+    return pos;
+  }
+
+  /**
+   * Read a possibly compressed name.
+   *
+   * @param record keep the name as the question name
+   * @return the position after the name, or -1 if malformed
+   */
+  private int readName(int pos, boolean record) {
+    int end = offset + length;
+    int next = -1;
+    int pointers = 0;
+    int total = 0;
+    if (record) nameLength = 0;
+
+    while (true) {
+      if (pos >= end) return -1;
+      int len = data[pos] & 0xff;
+      if ((len & 0xc0) == 0xc0) {
+        // the question is copied verbatim into the response, keep it flat
+        if (record) return -1;
+        if (pos + 1 >= end || ++pointers > MAX_POINTERS) return -1;
+        if (next < 0) next = pos + 2;
+        pos = offset + (((len & 0x3f) << 8) | (data[pos + 1] & 0xff));
+        continue;
+      }
+      if ((len & 0xc0) != 0) return -1;
+      pos++;
+      if (len == 0) break;
+      if (pos + len > end) return -1;
+      total += len + 1;
+      if (total > MAX_NAME_LEN) return -1;
+      if (record) {
+        if (nameLength > 0) name[nameLength++] = '.';
+        for (int i = 0; i < len; i++) {
+          char c = (char) (data[pos + i] & 0xff);
+          if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+          name[nameLength++] = c;
+        }
+      }
+      pos += len;
+    }
+
+    return next < 0 ? pos : next;
+  }
+
+  /** @return the position after the record, or -1 if malformed */
+  private int skipRecord(int pos) {
+    pos = readName(pos, false);
+    if (pos < 0 || pos + 10 > offset + length) return -1;
+    pos += 10 + readShort(pos + 8);
+    return pos > offset + length ? -1 : pos;
+  }
+
+  private int readShort(int pos) {
+    return readShort(data, pos);
+  }
+
+  private static int readShort(byte[] buf, int pos) {
+    return ((buf[pos] & 0xff) << 8) | (buf[pos + 1] & 0xff);
+  }
+
+  private static void writeShort(byte[] buf, int pos, int value) {
+    buf[pos] = (byte) (value >> 8);
+    buf[pos + 1] = (byte) value;
+  }
+
+  private static void writeInt(byte[] buf, int pos, long value) {
+    buf[pos] = (byte) (value >> 24);
+    buf[pos + 1] = (byte) (value >> 16);
+    buf[pos + 2] = (byte) (value >> 8);
+    buf[pos + 3] = (byte) value;
+  }
+}
@@ -0,0 +1,493 @@
+package org.gaeproxy;
+
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * HTTP/1.1 client for the DNS relay. A few persistent connections to the
+ * relay address are shared by every lookup: requests are pipelined on the
+ * least busy one, and each connection has one reader thread matching the
+ * responses to the requests in order. Every request has a deadline, once it
+ * passes the connection is dropped, as the responses behind it cannot be
+ * told apart anymore, and the requests still pipelined on it are sent again
+ * once on a new connection. If the relay does not keep connections alive,
+ * requests are no longer pipelined.
+ */
+public class DNSRelayClient {
+
+  private static final String TAG = "GAEDNSProxy";
+
+  private static final int CONNECTIONS = 2;
+  /** Requests in flight on one connection */
+  private static final int MAX_PIPELINE = 8;
+  /** Requests waiting for a connection once they are all busy */
+  private static final int MAX_BACKLOG = 64;
+  private static final int MAX_HEADER_LINE = 8192;
+  private static final int MAX_BODY = 64 * 1024;
+  private static final long IDLE_TIMEOUT = 30 * 1000L;
+  /** No request pipelined on the connection is sent again */
+  private static final int NO_RETRY = Integer.MAX_VALUE;
+
+  /** Results of reading a response: the connection stays open */
+  private static final int KEEP = 0;
+  /** The relay closes the connection after the response */
+  private static final int CLOSE = 1;
+  /** The connection was dropped meanwhile, by a deadline or the client */
+  private static final int STALE = 2;
+
+  public interface Callback {
+    /** Called on the reader thread with the status and the body, in UTF-8 */
+    void onResponse(int status, String body);
+
+    void onFailure(IOException error);
+  }
+
+  private static class Request {
+    final byte[] data;
+    final Callback callback;
+    final long deadline;
+    boolean retried = false;
+
+    Request(byte[] data, Callback callback, long deadline) {
+      this.data = data;
+      this.callback = callback;
+      this.deadline = deadline;
+    }
+  }
+
+  private final String address;
+  private final int port;
+  private final String host;
+  private final int timeout;
+  private final Connection[] connections = new Connection[CONNECTIONS];
+  private final LinkedList<Request> backlog = new LinkedList<Request>();
+
+  /** Cleared once the relay closes a connection after a response */
+  private volatile boolean keepAlive = true;
+  private volatile boolean closed = false;
+
+  /**
+   * @param address where to connect, the relay is virtually hosted on it
+   * @param host the Host header of the requests
+   * @param timeout deadline of each request, in ms
+   */
+  public DNSRelayClient(String address, int port, String host, int timeout) {
+    this.address = address;
+    this.port = port;
+    this.host = host;
+    this.timeout = timeout;
+    for (int i = 0; i < CONNECTIONS; i++) {
+      connections[i] = new Connection(i);
+    }
+  }
+
+  /** Send a GET of the path, the callback is called once either way */
+  public void get(String path, Callback callback) {
+    String request = "GET " + path + " HTTP/1.1\r\n"
+        + "Host: " + host + "\r\n"
+        + "Connection: keep-alive\r\n"
+        + "\r\n";
+    submit(new Request(request.getBytes(), callback, System.currentTimeMillis() + timeout));
+  }
+
+  private void submit(Request request) {
+    if (closed) {
+      request.callback.onFailure(new IOException("Relay client closed"));
+      return;
+    }
+    Connection conn = leastBusy();
+    if (conn == null) {
+      synchronized (backlog) {
+        if (backlog.size() < MAX_BACKLOG) {
+          backlog.add(request);
+          return;
+        }
+      }
+      request.callback.onFailure(new IOException("Relay connections busy"));
+      return;
+    }
+    conn.send(request);
+  }
+
+  /** @return the connection with the fewest requests, null if they are all full */
+  private Connection leastBusy() {
+    int limit = keepAlive ? MAX_PIPELINE : 1;
+    Connection best = null;
+    int fewest = limit;
+    for (Connection conn : connections) {
+      int pending = conn.pending();
+      if (pending < fewest) {
+        best = conn;
+        fewest = pending;
+      }
+    }
+    return best;
+  }
+
+  /** Send the requests of the backlog while there is room, failing the late ones */
+  private void drain() {
+    while (true) {
+      Request request;
+      synchronized (backlog) {
+        request = backlog.peek();
+        if (request == null) return;
+        if (request.deadline > System.currentTimeMillis() && !closed && leastBusy() == null) {
+          return;
+        }
+        backlog.poll();
+      }
+      if (request.deadline <= System.currentTimeMillis() || closed) {
+        request.callback.onFailure(new IOException("Relay request timed out"));
+      } else {
+        submit(request);
+      }
+    }
+  }
+
+  public void close() {
+    closed = true;
+    for (Connection conn : connections) {
+      conn.drop(null, new IOException("Relay client closed"), NO_RETRY);
+    }
+    drain();
+  }
+
+  private class Connection implements Runnable {
+    private final int id;
+    /** Requests sent and not answered yet, oldest first */
+    private final LinkedList<Request> inFlight = new LinkedList<Request>();
+    private Socket socket;
+    private OutputStream out;
+    private long lastActive;
+    /** Requests waiting for the connection to open, counted as pending */
+    private int connecting = 0;
+
+    Connection(int id) {
+      this.id = id;
+    }
+
+    synchronized int pending() {
+      return inFlight.size() + connecting;
+    }
+
+    void send(Request request) {
+      boolean open;
+      synchronized (this) {
+        open = socket == null;
+        if (open) connecting++;
+      }
+      IOException error = null;
+      Socket fresh = null;
+      Socket used = null;
+      if (open) {
+        // without the lock, so that pending() does not wait for the relay
+        try {
+          fresh = connect(request.deadline);
+        } catch (IOException e) {
+          error = e;
+        }
+      }
+      synchronized (this) {
+        if (open) connecting--;
+        if (error == null) {
+          try {
+            // unless another request opened it first, or the client was closed
+            if (fresh != null && socket == null && !closed) {
+              attach(fresh);
+              fresh = null;
+            }
+            if (socket == null) throw new IOException("Relay connection dropped");
+            used = socket;
+            out.write(request.data);
+            out.flush();
+            inFlight.add(request);
+            lastActive = System.currentTimeMillis();
+          } catch (IOException e) {
+            error = e;
+          }
+        }
+      }
+      if (fresh != null) {
+        try {
+          fresh.close();
+        } catch (IOException ignored) {
+          // Nothing
+        }
+      }
+      if (error == null) return;
+      // most likely a connection the relay closed while idle
+      if (used != null) drop(used, error, 0);
+      if (!request.retried && !closed) {
+        request.retried = true;
+        submit(request);
+      } else {
+        request.callback.onFailure(error);
+      }
+    }
+
+    /** @return a socket connected to the relay, before the deadline */
+    private Socket connect(long deadline) throws IOException {
+      int wait = (int) Math.max(1, deadline - System.currentTimeMillis());
+      Socket s = new Socket();
+      try {
+        s.setTcpNoDelay(true);
+        s.connect(new InetSocketAddress(address, port), wait);
+      } catch (IOException e) {
+        s.close();
+        throw e;
+      }
+      return s;
+    }
+
+    /** Use the socket and start its reader, called with the lock held */
+    private void attach(Socket s) throws IOException {
+      out = s.getOutputStream();
+      socket = s;
+      Thread reader = new Thread(this, "DNSRelayClient-" + id);
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    @Override
+    public void run() {
+      Socket s;
+      synchronized (this) {
+        s = socket;
+      }
+      if (s == null) return;
+      try {
+        InputStream in = new BufferedInputStream(s.getInputStream());
+        while (true) {
+          // wait for the next response until the oldest request is due,
+          // or while idle until the connection is closed
+          synchronized (this) {
+            if (socket != s) return;
+            s.setSoTimeout(nextWakeUp(System.currentTimeMillis()));
+          }
+          in.mark(1);
+          int c;
+          try {
+            c = in.read();
+          } catch (SocketTimeoutException e) {
+            long now = System.currentTimeMillis();
+            boolean idle;
+            synchronized (this) {
+              if (socket != s) return;
+              Request request = inFlight.peek();
+              if (request != null && request.deadline <= now) throw e;
+              idle = request == null && now - lastActive >= IDLE_TIMEOUT;
+            }
+            if (idle) {
+              drop(s, new IOException("Relay connection idle"), NO_RETRY);
+              return;
+            }
+            continue;
+          }
+          if (c < 0) {
+            drop(s, new IOException("Relay closed the connection"), 0);
+            return;
+          }
+          in.reset();
+
+          synchronized (this) {
+            if (socket != s) return;
+            Request request = inFlight.peek();
+            if (request == null) throw new IOException("Unexpected response from the relay");
+            s.setSoTimeout((int) Math.max(1, request.deadline - System.currentTimeMillis()));
+          }
+          int result = readResponse(s, in);
+          if (result == STALE) return;
+          if (result == CLOSE) {
+            keepAlive = false;
+            drop(s, new IOException("Relay closed the connection"), 0);
+            return;
+          }
+        }
+      } catch (SocketTimeoutException e) {
+        drop(s, new IOException("Relay request timed out"), 1);
+      } catch (IOException e) {
+        drop(s, e, 1);
+      }
+    }
+
+    /**
+     * A request sent while the reader waits idle is only checked once it
+     * wakes up, so the idle wait is cut into request timeouts, called with
+     * the lock held.
+     *
+     * @return how long the reader may block, in ms
+     */
+    private int nextWakeUp(long now) {
+      Request request = inFlight.peek();
+      long wait = request != null ? request.deadline - now
+          : Math.min(lastActive + IDLE_TIMEOUT - now, timeout);
+      return (int) Math.max(1, wait);
+    }
+
+    /**
+     * Read one response and hand it to the oldest request
+     *
+     * @return {@link #KEEP}, {@link #CLOSE} or {@link #STALE}
+     */
+    private int readResponse(Socket s, InputStream in) throws IOException {
+      String statusLine = readLine(in);
+      if (statusLine == null) throw new IOException("Relay closed the connection");
+      String[] parts = statusLine.split(" ", 3);
+      if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+        throw new IOException("Malformed status line: " + statusLine);
+      }
+      int status;
+      try {
+        status = Integer.parseInt(parts[1]);
+      } catch (NumberFormatException e) {
+        throw new IOException("Malformed status line: " + statusLine);
+      }
+
+      long length = -1;
+      boolean chunked = false;
+      boolean close = parts[0].equals("HTTP/1.0");
+      String line;
+      while ((line = readLine(in)) != null && line.length() > 0) {
+        int colon = line.indexOf(':');
+        if (colon <= 0) continue;
+        String name = line.substring(0, colon).trim();
+        String value = line.substring(colon + 1).trim();
+        if (name.equalsIgnoreCase("Content-Length")) {
+          try {
+            length = Long.parseLong(value);
+          } catch (NumberFormatException e) {
+            throw new IOException("Malformed Content-Length: " + value);
+          }
+        } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+          chunked = value.equalsIgnoreCase("chunked");
+        } else if (name.equalsIgnoreCase("Connection")) {
+          close = value.equalsIgnoreCase("close");
+        }
+      }
+      if (line == null) throw new IOException("Relay closed the connection");
+
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      if (chunked) {
+        while (true) {
+          String size = readLine(in);
+          if (size == null) throw new IOException("Relay closed the connection");
+          int semicolon = size.indexOf(';');
+          if (semicolon >= 0) size = size.substring(0, semicolon);
+          long chunk;
+          try {
+            chunk = Long.parseLong(size.trim(), 16);
+          } catch (NumberFormatException e) {
+            throw new IOException("Malformed chunk size: " + size);
+          }
+          if (chunk == 0) {
+            // trailers
+            while ((line = readLine(in)) != null && line.length() > 0) {
+              // Nothing
+            }
+            break;
+          }
+          readBody(in, body, chunk);
+          readLine(in);
+        }
+      } else if (length >= 0) {
+        readBody(in, body, length);
+      } else {
+        // delimited by the end of the connection
+        readBody(in, body, -1);
+        close = true;
+      }
+
+      Request request;
+      synchronized (this) {
+        if (socket != s) return STALE;
+        request = inFlight.poll();
+        lastActive = System.currentTimeMillis();
+      }
+      if (request != null) request.callback.onResponse(status, body.toString("UTF-8"));
+      if (close) return CLOSE;
+      drain();
+      return KEEP;
+    }
+
+    private void readBody(InputStream in, ByteArrayOutputStream body, long length)
+        throws IOException {
+      byte[] buf = new byte[4096];
+      long remaining = length;
+      while (remaining != 0) {
+        int n = in.read(buf, 0, remaining < 0 ? buf.length : (int) Math.min(buf.length, remaining));
+        if (n < 0) {
+          if (length < 0) return;
+          throw new IOException("Relay closed the connection");
+        }
+        if (body.size() + n > MAX_BODY) throw new IOException("Relay response too large");
+        body.write(buf, 0, n);
+        if (remaining > 0) remaining -= n;
+      }
+    }
+
+    /**
+     * Close the connection and fail the requests pipelined on it, except
+     * those from retryFrom on, which are sent once more if there is time.
+     * Never called with the lock held, as the retries lock other connections.
+     *
+     * @param from the socket the error is about, null for the current one
+     */
+    void drop(Socket from, IOException error, int retryFrom) {
+      List<Request> failed;
+      synchronized (this) {
+        if (from != null && socket != from) return;
+        if (socket != null) {
+          try {
+            socket.close();
+          } catch (IOException ignored) {
+            // Nothing
+          }
+          socket = null;
+          out = null;
+        }
+        failed = new ArrayList<Request>(inFlight);
+        inFlight.clear();
+      }
+      if (!failed.isEmpty() && DNSServer.DEBUG) {
+        Log.d(TAG, "Relay connection dropped with " + failed.size() + " requests", error);
+      }
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < failed.size(); i++) {
+        Request request = failed.get(i);
+        if (i >= retryFrom && !request.retried && !closed && request.deadline > now) {
+          request.retried = true;
+          submit(request);
+        } else {
+          request.callback.onFailure(error);
+        }
+      }
+      drain();
+    }
+
+    /** @return a CRLF terminated line without the terminator, or null at the end */
+    private String readLine(InputStream in) throws IOException {
+      StringBuilder sb = new StringBuilder();
+      int c;
+      while ((c = in.read()) >= 0) {
+        if (c == '\n') {
+          int len = sb.length();
+          if (len > 0 && sb.charAt(len - 1) == '\r') sb.setLength(len - 1);
+          return sb.toString();
+        }
+        if (sb.length() >= MAX_HEADER_LINE) throw new IOException("Relay header too long");
+        sb.append((char) c);
+      }
+      return sb.length() == 0 ? null : sb.toString();
+    }
+  }
+}
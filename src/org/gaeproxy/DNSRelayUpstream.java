@@ -0,0 +1,223 @@
+package org.gaeproxy;
+
+import android.util.Log;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * The HTTP relay, always part of the resolver chain. Lookups are collected
+ * for a few ms and sent as one batched request, and once the relay turns
+ * out not to understand batches, as one request per name from then on.
+ *
+ * Example:
+ *
+ * http://myhosts.sinaapp.com/lookup.php?host=(domain name encoded)
+ * http://myhosts.sinaapp.com/lookup.php?hosts=(domain names encoded)
+ *
+ * Names are encoded twice with Base64, several of them joined with ','
+ * first. A batch is answered with one line per name: "(domain) (answer)".
+ */
+public class DNSRelayUpstream extends DNSUpstream {
+
+  private static final String TAG = "GAEDNSProxy";
+
+  /** Time to collect lookups for one batch, in ms */
+  private static final long BATCH_WINDOW = 5;
+  private static final int MAX_BATCH = 32;
+
+  private final String address;
+  private final DNSRelayClient client;
+
+  /** Callbacks of the lookups in flight by domain */
+  private final HashMap<String, List<Callback>> waiting = new HashMap<String, List<Callback>>();
+  /** Lookups collected for the next batch */
+  private final List<String> batch = new ArrayList<String>();
+  private final ScheduledExecutorService batchTimer =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "DNSRelayBatch");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+  /** Cleared once the relay turns out not to understand batched lookups */
+  private volatile boolean batchSupported = true;
+
+  /**
+   * @param address where to connect, the relay is virtually hosted on it
+   * @param host the Host header of the requests
+   * @param timeout deadline of each request, in ms
+   */
+  public DNSRelayUpstream(String address, int port, String host, int timeout) {
+    super("relay");
+    this.address = address;
+    client = new DNSRelayClient(address, port, host, timeout);
+  }
+
+  @Override
+  public void resolve(String domain, Executor executor, Callback callback) {
+    synchronized (waiting) {
+      List<Callback> callbacks = waiting.get(domain);
+      if (callbacks != null) {
+        // answered along with the lookup in flight
+        callbacks.add(callback);
+        return;
+      }
+      callbacks = new ArrayList<Callback>();
+      callbacks.add(callback);
+      waiting.put(domain, callbacks);
+    }
+    if (batchSupported) {
+      queueBatch(domain);
+    } else {
+      fetchSingle(domain);
+    }
+  }
+
+  public boolean isBatchSupported() {
+    return batchSupported;
+  }
+
+  /** Fail the lookups in flight and close the connections */
+  public void close() {
+    batchTimer.shutdownNow();
+    client.close();
+    List<String> domains;
+    synchronized (waiting) {
+      domains = new ArrayList<String>(waiting.keySet());
+    }
+    for (String domain : domains) {
+      result(domain, null);
+    }
+  }
+
+  /** Hand an answer to the callbacks of the domain */
+  private void result(String domain, String answer) {
+    List<Callback> callbacks;
+    synchronized (waiting) {
+      callbacks = waiting.remove(domain);
+    }
+    if (callbacks == null) return;
+    if (answer != null) answer = answer.trim();
+    for (Callback callback : callbacks) {
+      callback.onResult(this, answer);
+    }
+  }
+
+  /** Collect the lookup for the next batch, sent once the window is over or it is full */
+  private void queueBatch(String domain) {
+    try {
+      synchronized (batch) {
+        batch.add(domain);
+        if (batch.size() >= MAX_BATCH) {
+          batchTimer.execute(flushBatch);
+        } else if (batch.size() == 1) {
+          batchTimer.schedule(flushBatch, BATCH_WINDOW, TimeUnit.MILLISECONDS);
+        }
+      }
+    } catch (RejectedExecutionException e) {
+      // closed
+      result(domain, null);
+    }
+  }
+
+  private final Runnable flushBatch = new Runnable() {
+    @Override
+    public void run() {
+      final List<String> names;
+      synchronized (batch) {
+        if (batch.isEmpty()) return;
+        names = new ArrayList<String>(batch);
+        batch.clear();
+      }
+      if (names.size() == 1) {
+        fetchSingle(names.get(0));
+      } else {
+        fetchBatch(names);
+      }
+    }
+  };
+
+  /** Resolve one domain with its own request */
+  private void fetchSingle(final String domain) {
+    client.get("/lookup.php?host=" + encode(domain), new DNSRelayClient.Callback() {
+      @Override
+      public void onResponse(int status, String body) {
+        if (status / 100 == 2) {
+          result(domain, body);
+        } else {
+          Log.e(TAG, "Failed to resolve domain name: " + domain + ", status " + status);
+          result(domain, null);
+        }
+      }
+
+      @Override
+      public void onFailure(IOException error) {
+        Log.e(TAG, "Failed to resolve domain name: " + domain);
+        result(domain, null);
+      }
+    });
+  }
+
+  /** Resolve several domains with one request, falling back to single ones */
+  private void fetchBatch(final List<String> names) {
+    StringBuilder sb = new StringBuilder();
+    for (String name : names) {
+      if (sb.length() > 0) sb.append(',');
+      sb.append(name);
+    }
+
+    client.get("/lookup.php?hosts=" + encode(sb.toString()), new DNSRelayClient.Callback() {
+      @Override
+      public void onResponse(int status, String body) {
+        if (status == 400 || status == 404 || status == 501) {
+          fallback();
+          return;
+        }
+        if (status / 100 != 2) {
+          onFailure(new IOException("Relay status " + status));
+          return;
+        }
+        HashMap<String, String> answers = parseBatchAnswers(body, names);
+        if (answers == null) {
+          fallback();
+          return;
+        }
+        for (String domain : names) {
+          result(domain, answers.get(domain));
+        }
+      }
+
+      @Override
+      public void onFailure(IOException error) {
+        Log.e(TAG, "Failed to resolve " + names.size() + " domain names", error);
+        for (String domain : names) {
+          result(domain, null);
+        }
+      }
+
+      private void fallback() {
+        if (batchSupported) Log.w(TAG, "Batched lookup not supported by " + address);
+        batchSupported = false;
+        for (String domain : names) {
+          fetchSingle(domain);
+        }
+      }
+    });
+  }
+
+  private static String encode(String names) {
+    String once = new String(Base64.encodeBase64(names.getBytes(), false));
+    return new String(Base64.encodeBase64(once.getBytes(), false));
+  }
+}
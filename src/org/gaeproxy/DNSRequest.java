@@ -0,0 +1,30 @@
+package org.gaeproxy;
+
+/**
+ * A query received over UDP or TCP. The cache and the relay lookups only see
+ * this, the transport decides how large the answer may be and how it is sent.
+ */
+public abstract class DNSRequest {
+
+  public final byte[] data;
+  public final int offset;
+  public final int length;
+  /** When the request was received, from {@link System#nanoTime()} */
+  public final long received = System.nanoTime();
+
+  protected DNSRequest(byte[] data, int offset, int length) {
+    this.data = data;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  /** @return the room for the header and answers of the response */
+  public abstract int getAnswerLimit(DNSMessage msg);
+
+  /** Send the response, the buffer may be reused once this returns */
+  public abstract void reply(byte[] response, int length);
+
+  /** Called instead of {@link #reply} when the request gets no answer */
+  public void drop() {
+  }
+}
@@ -0,0 +1,60 @@
+package org.gaeproxy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Address to domain index for the reverse lookups, kept up to date as
+ * answers are cached. When several domains share an address the most
+ * recently resolved one wins.
+ */
+public class DNSReverseIndex {
+
+  private static class Record {
+    final String domain;
+    final long timestamp;
+
+    Record(String domain, long timestamp) {
+      this.domain = domain;
+      this.timestamp = timestamp;
+    }
+  }
+
+  private final LinkedHashMap<String, Record> records;
+
+  public DNSReverseIndex(final int capacity) {
+    records = new LinkedHashMap<String, Record>(capacity, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Record> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * Index every address of an answer.
+   *
+   * @param address addresses separated by '|'
+   */
+  public synchronized void put(String address, String domain, long timestamp) {
+    for (String addr : address.split("\\|")) {
+      addr = addr.trim();
+      // loopback is the placeholder answer, it never names a remote host
+      if (addr.length() == 0 || addr.startsWith("127.")) continue;
+      Record record = records.get(addr);
+      if (record == null || record.timestamp <= timestamp) {
+        records.put(addr, new Record(domain, timestamp));
+      }
+    }
+  }
+
+  /** @return the latest domain resolved to the address, or null */
+  public synchronized String get(String address) {
+    Record record = records.get(address);
+    return record == null ? null : record.domain;
+  }
+
+  public synchronized int size() {
+    return records.size();
+  }
+}
@@ -0,0 +1,243 @@
+package org.gaeproxy;
+
+import android.util.Log;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Reverse lookups for the local proxies: each line received is an address,
+ * answered with the domain it was resolved from, or "null", on a line of its
+ * own. Connections stay open so that lookups can be pipelined, and all of
+ * them are served from the {@link DNSReverseIndex} by one selector thread.
+ * The line "stats" is answered with the counters of the DNS proxy.
+ */
+public class DNSReverseServer implements Runnable {
+
+  private static final String TAG = "GAEDNSProxy";
+
+  private static final int MAX_CONNECTIONS = 64;
+  /** Answers queued on one connection before it stops being read */
+  private static final int MAX_PENDING = 64;
+  /** Longer lines cannot be an address */
+  private static final int MAX_LINE = 256;
+  private static final long IDLE_TIMEOUT = 60 * 1000L;
+  private static final long SELECT_TIMEOUT = 1000L;
+
+  private static final byte[] NOT_FOUND = { 'n', 'u', 'l', 'l', '\n' };
+  private static final String STATS = "stats";
+
+  private final DNSReverseIndex index;
+  private final DNSServer server;
+  private final ServerSocketChannel serverChannel;
+  private final Selector selector;
+
+  /** Read scratch buffer, only used on the selector thread */
+  private final ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+
+  public DNSReverseServer(DNSReverseIndex index, DNSServer server, InetAddress address,
+      int port) throws IOException {
+    this.index = index;
+    this.server = server;
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    try {
+      serverChannel.socket().setReuseAddress(true);
+      serverChannel.socket().bind(new InetSocketAddress(address, port));
+      serverChannel.configureBlocking(false);
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      serverChannel.close();
+      selector.close();
+      throw e;
+    }
+  }
+
+  public void close() {
+    try {
+      serverChannel.close();
+    } catch (IOException ignored) {
+      // Nothing
+    }
+    selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (serverChannel.isOpen()) {
+        selector.select(SELECT_TIMEOUT);
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          if (!key.isValid()) continue;
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          Connection conn = (Connection) key.attachment();
+          if (key.isReadable()) conn.read();
+          if (key.isValid() && key.isWritable()) conn.write();
+        }
+
+        closeIdle();
+      }
+    } catch (ClosedSelectorException ignored) {
+      // closed from another thread
+    } catch (IOException e) {
+      Log.e(TAG, "reverse socket: ", e);
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() != null) ((Connection) key.attachment()).close();
+      }
+      try {
+        selector.close();
+      } catch (IOException ignored) {
+        // Nothing
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = serverChannel.accept();
+    if (channel == null) return;
+    if (selector.keys().size() > MAX_CONNECTIONS) {
+      channel.close();
+      return;
+    }
+    channel.configureBlocking(false);
+    Connection conn = new Connection(channel);
+    conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+  }
+
+  private void closeIdle() {
+    long now = System.currentTimeMillis();
+    for (SelectionKey key : selector.keys()) {
+      Connection conn = (Connection) key.attachment();
+      if (conn != null && now - conn.lastActive > IDLE_TIMEOUT) conn.close();
+    }
+  }
+
+  /** @return the answer line for an address */
+  private byte[] lookup(String addr) {
+    if (STATS.equals(addr)) return (server.getStats() + "\n").getBytes();
+    String domain = index.get(addr);
+    if (domain == null) {
+      if (DNSServer.DEBUG) Log.d(TAG, "reverse query: " + addr + " null");
+      return NOT_FOUND;
+    }
+    if (DNSServer.DEBUG) Log.d(TAG, "reverse query: " + addr + " " + domain);
+    byte[] answer = new byte[domain.length() + 1];
+    for (int i = 0; i < domain.length(); i++) {
+      answer[i] = (byte) domain.charAt(i);
+    }
+    answer[domain.length()] = '\n';
+    return answer;
+  }
+
+  private class Connection {
+    private final SocketChannel channel;
+    private SelectionKey key;
+
+    /** The line being read */
+    private final StringBuilder line = new StringBuilder();
+    /** Answers waiting to be written */
+    private final LinkedList<ByteBuffer> output = new LinkedList<ByteBuffer>();
+    /** The client is done sending */
+    private boolean eof = false;
+
+    private long lastActive = System.currentTimeMillis();
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    void read() {
+      readBuffer.clear();
+      int n;
+      try {
+        n = channel.read(readBuffer);
+      } catch (IOException e) {
+        close();
+        return;
+      }
+      if (n < 0) {
+        eof = true;
+        // a last address without its line break
+        if (line.length() > 0) answer();
+        update();
+        return;
+      }
+      lastActive = System.currentTimeMillis();
+
+      for (int i = 0; i < n; i++) {
+        char c = (char) (readBuffer.get(i) & 0xff);
+        if (c == '\n') {
+          answer();
+        } else if (c != '\r') {
+          if (line.length() >= MAX_LINE) {
+            close();
+            return;
+          }
+          line.append(c);
+        }
+      }
+      // answer right away, most clients wait for it before the next line
+      write();
+    }
+
+    private void answer() {
+      String addr = line.toString().trim();
+      line.setLength(0);
+      if (addr.length() == 0) return;
+      output.add(ByteBuffer.wrap(lookup(addr)));
+    }
+
+    void write() {
+      try {
+        while (!output.isEmpty()) {
+          ByteBuffer buf = output.getFirst();
+          channel.write(buf);
+          if (buf.hasRemaining()) break;
+          output.removeFirst();
+        }
+      } catch (IOException e) {
+        close();
+        return;
+      }
+      lastActive = System.currentTimeMillis();
+      update();
+    }
+
+    /** Wait for room in the socket while answers are left, stop reading at EOF */
+    void update() {
+      if (!key.isValid()) return;
+      if (eof && output.isEmpty()) {
+        close();
+        return;
+      }
+      int ops = eof || output.size() >= MAX_PENDING ? 0 : SelectionKey.OP_READ;
+      if (!output.isEmpty()) ops |= SelectionKey.OP_WRITE;
+      key.interestOps(ops);
+    }
+
+    void close() {
+      if (key != null) key.cancel();
+      try {
+        channel.close();
+      } catch (IOException ignored) {
+        // Nothing
+      }
+    }
+  }
+}
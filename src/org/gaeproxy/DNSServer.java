@@ -3,27 +3,37 @@ package org.gaeproxy;
 import android.content.Context;
 import android.util.Log;
 import android.util.Pair;
-import com.google.analytics.tracking.android.EasyTracker;
 import com.j256.ormlite.android.apptools.OpenHelperManager;
 import com.j256.ormlite.dao.Dao;
-import com.loopj.android.http.AsyncHttpClient;
-import com.loopj.android.http.AsyncHttpResponseHandler;
-import java.io.BufferedReader;
+import com.j256.ormlite.stmt.DeleteBuilder;
+import com.j256.ormlite.stmt.QueryBuilder;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.List;
-import org.apache.commons.codec.binary.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.gaeproxy.db.DNSResponse;
 import org.gaeproxy.db.DatabaseHelper;
 import org.gaeproxy.db.DomainValidator;
@@ -47,44 +57,179 @@ public class DNSServer implements Runnable {
 
   private final String TAG = "GAEDNSProxy";
 
+  /**
+   * Per query logging, off unless "setprop log.tag.GAEDNSProxy DEBUG" was
+   * run before the service started
+   */
+  static final boolean DEBUG = Log.isLoggable("GAEDNSProxy", Log.DEBUG);
+
+  public static final int DEFAULT_WORKERS = 4;
+  private static final int MAX_WORKERS = 16;
+  private static final int QUEUE_SIZE = 128;
+  private static final int MAX_WAITING = 64;
+  /** Delay before racing the next upstream, in ms */
+  private static final long UPSTREAM_STAGGER = 300;
+  private static final int UPSTREAM_THREADS = 4;
+  /** Give the skipped slowest upstream a chance once every this many lookups */
+  private static final int UPSTREAM_PROBE = 16;
+  private static final int MEMORY_CACHE_SIZE = 512;
+  private static final int REVERSE_INDEX_SIZE = 8192;
+  /** Port of the reverse lookups for the local proxies */
+  static final int REVERSE_PORT = 9090;
+  /** Number of popular domains kept fresh */
+  private static final int PREFETCH_COUNT = 32;
+  private static final int PREFETCH_BUDGET = 4;
+  private static final long PREFETCH_INTERVAL = 30 * 60 * 1000L;
+  /** Popular answers are refreshed in the last 1/REFRESH_AHEAD of their TTL */
+  private static final int REFRESH_AHEAD = 4;
+  // rank by the requests of the last week
+  private static final long PREFETCH_WINDOW = 7 * 24 * 60 * 60 * 1000L;
+  // rows are kept for 10 days, to be served stale once their TTL is over
+  private static final long CACHE_EXPIRE = 864000000L;
+  /** Bounds of the TTL of the answers, in seconds */
+  public static final int DEFAULT_MIN_TTL = 60;
+  public static final int DEFAULT_MAX_TTL = 24 * 60 * 60;
+  /**
+   * TTL sent for the answers that do not carry one, like the relay ones, in
+   * seconds. They are kept for the maximum TTL, a long time, and prefetched.
+   */
+  private static final int UNKNOWN_TTL = 60;
+  /** TTL of the stale answers sent while they are refreshed, as in RFC 8767 */
+  private static final int STALE_TTL = 30;
+  /** Rows kept in the dnsresponse table, the least recently requested go first */
+  private static final long MAX_CACHE_ROWS = 4096;
+  private static final long CACHE_TRIM_INTERVAL = 60 * 60 * 1000L;
+  private static final String SNAPSHOT_FILE = "dnscache.snapshot";
+  private static final long SNAPSHOT_INTERVAL = 10 * 60 * 1000L;
+  private static final long TELEMETRY_INTERVAL = 15 * 60 * 1000L;
+  // names the relay cannot resolve are tried again after 5 minutes
+  private static final long NXDOMAIN_EXPIRE = 5 * 60 * 1000L;
+  // malformed relay answers are tried again after 30 seconds
+  private static final long SERVFAIL_EXPIRE = 30 * 1000L;
+
   private DatagramSocket datagramSocket;
-  private ServerSocket serverSocket;
+  /** Reverse lookups, null if the port cannot be bound */
+  private DNSReverseServer reverseServer;
+  /** DNS over TCP on the same port, null if it cannot be bound */
+  private DNSTcpServer tcpServer;
 
-  public final HashSet<String> domains;
+  /** Requests waiting for the answer of a domain being resolved */
+  public final HashMap<String, List<DNSRequest>> domains;
 
   private int srvPort = 8153;
-  final protected int DNS_PKG_HEADER_LEN = 12;
-  final private int[] DNS_HEADERS = { 0, 0, 0x81, 0x80, 0, 0, 0, 0, 0, 0, 0, 0 };
-  final private int[] DNS_PAYLOAD = {
-      0xc0, 0x0c, 0x00, 0x01, 0x00, 0x01, 0x00, 0x00, 0x00, 0x3c, 0x00, 0x04
-  };
+  private volatile int minTtl = DEFAULT_MIN_TTL;
+  private volatile int maxTtl = DEFAULT_MAX_TTL;
+  /** Answer from expired rows while they are resolved again */
+  private volatile boolean serveStale = false;
 
-  /** Hosts */
-  private Hashtable<String, String> orgCache = new Hashtable<String, String>();
+  /** Overrides answered before the cache, swapped as a whole on reload */
+  private volatile DNSHosts hosts = new DNSHosts();
+  /** The host of the PaaS, always overridden */
+  private final Pair<String, String> orgHost;
 
   private String appHost = "203.208.46.1";
 
-  private static final String CANT_RESOLVE = "Error";
+  private static final String CANT_RESOLVE = DNSUpstream.CANT_RESOLVE;
+
+  /** Keep NXDOMAIN answers in the database as well as in memory */
+  private volatile boolean persistNegative = false;
 
   private DatabaseHelper helper;
 
-  private final static AsyncHttpClient client = new AsyncHttpClient();
+  /** Host the relay is virtually hosted as, on appHost */
+  private static final String RELAY_HOST = "myhosts.sinaapp.com";
+  private static final int RELAY_PORT = 80;
+  /** Within the 5 seconds resolvers wait before trying again */
+  private static final int RELAY_TIMEOUT = 4 * 1000;
+
+  /** Workers decoding and answering the requests taken off the socket */
+  private final ThreadPoolExecutor workers;
+
+  /** Answers served without touching the database */
+  private final DNSCache memoryCache = new DNSCache(MEMORY_CACHE_SIZE);
+
+  /** Hot answers of the last run, served while the database warms up */
+  private final DNSSnapshot snapshot;
+
+  /** Counters and latencies, read through the stats command */
+  private final DNSStats stats = new DNSStats();
+  /** Resolve events, sent from the prefetch timer */
+  private final DNSTelemetry telemetry = new DNSTelemetry();
+
+  /** Domains by address, for the reverse lookups */
+  private final DNSReverseIndex reverseIndex = new DNSReverseIndex(REVERSE_INDEX_SIZE);
+
+  /** Popular domains being refreshed in the background, guarded by domains */
+  private final HashSet<String> prefetching = new HashSet<String>();
+  /** Bounds the concurrent background refreshes */
+  private final Semaphore prefetchBudget = new Semaphore(PREFETCH_BUDGET);
+  private final ScheduledExecutorService prefetchTimer =
+      Executors.newSingleThreadScheduledExecutor(new WorkerFactory());
+
+  /** Starts the next upstream of the races */
+  private final ScheduledExecutorService raceTimer =
+      Executors.newSingleThreadScheduledExecutor(new WorkerFactory());
+
+  /** The HTTP relay at appHost, always part of the resolver chain */
+  private final DNSRelayUpstream relay;
+  /** Upstreams raced for each cache miss */
+  private final List<DNSUpstream> upstreams = new CopyOnWriteArrayList<DNSUpstream>();
+  /** Runs the blocking lookups of the upstreams */
+  private final ExecutorService upstreamPool =
+      Executors.newFixedThreadPool(UPSTREAM_THREADS, new WorkerFactory());
+  /** Lookups in flight by domain */
+  private final ConcurrentHashMap<String, Race> races = new ConcurrentHashMap<String, Race>();
+  private final AtomicInteger lookups = new AtomicInteger();
+
+  /** Batches the database writes of new answers and hits */
+  private DNSCacheWriter cacheWriter;
+
+  /** Response scratch buffer of each worker */
+  private final ThreadLocal<byte[]> responseBuffer = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[DNSMessage.MAX_UDP_SIZE];
+    }
+  };
+
+  /** Request parser of each worker */
+  private final ThreadLocal<DNSMessage> messages = new ThreadLocal<DNSMessage>() {
+    @Override
+    protected DNSMessage initialValue() {
+      return new DNSMessage();
+    }
+  };
 
   public DNSServer(Context ctx, String appHost, Pair<String, String> orgHost) {
+    this(ctx, appHost, orgHost, DEFAULT_WORKERS);
+  }
+
+  public DNSServer(Context ctx, String appHost, Pair<String, String> orgHost, int workerCount) {
 
     this.appHost = appHost;
 
-    if (orgHost != null) this.orgCache.put(orgHost.first, orgHost.second);
+    this.orgHost = orgHost;
+    setHosts(null);
 
-    client.setTimeout(6 * 1000);
+    relay = new DNSRelayUpstream(appHost, RELAY_PORT, RELAY_HOST, RELAY_TIMEOUT);
+    upstreams.add(relay);
 
-    domains = new HashSet<String>();
+    domains = new HashMap<String, List<DNSRequest>>();
+
+    if (workerCount < 1) workerCount = 1;
+    if (workerCount > MAX_WORKERS) workerCount = MAX_WORKERS;
+    workers = new ThreadPoolExecutor(workerCount, workerCount, 30, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new WorkerFactory(), new BlockingPolicy());
 
     OpenHelperManager.setOpenHelperClass(DatabaseHelper.class);
 
     if (helper == null) {
       helper = OpenHelperManager.getHelper(ctx, DatabaseHelper.class);
     }
+    cacheWriter = new DNSCacheWriter(helper, memoryCache);
+
+    snapshot = new DNSSnapshot(new File(ctx.getFilesDir(), SNAPSHOT_FILE));
+    if (snapshot.load()) Log.d(TAG, "DNS snapshot mapped");
 
     try {
       datagramSocket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
@@ -95,32 +240,99 @@ public class DNSServer implements Runnable {
     } catch (UnknownHostException e) {
       Log.e(TAG, "error to initilized at port " + srvPort, e);
     }
+
+    if (datagramSocket != null) {
+      try {
+        tcpServer = new DNSTcpServer(this, datagramSocket.getLocalAddress(), srvPort);
+      } catch (IOException e) {
+        Log.e(TAG, "error to initilized TCP at port " + srvPort, e);
+      }
+    }
   }
 
-  /** Add resolve result to cache */
-  private synchronized void addToCache(String questDomainName, byte[] answer) {
+  /**
+   * Add resolve result to cache
+   *
+   * @param address addresses separated by '|'
+   * @param ttl TTL given by the upstream, or {@link DNSUpstream#NO_TTL}
+   * @return the new entry, or null if no valid address is found
+   */
+  private DNSCache.Entry addToCache(String questDomainName, String address, int ttl) {
+    byte[] ips = parseIPString(address);
+    byte[] ipv6 = parseIPv6String(address);
+    if (ips == null || ipv6 == null || ips.length + ipv6.length == 0) return null;
     DNSResponse response = new DNSResponse(questDomainName);
-    response.setAddress(DNSResponse.getIPString(answer));
-    try {
-      Dao<DNSResponse, String> dnsCacheDao = helper.getDNSCacheDao();
-      dnsCacheDao.createOrUpdate(response);
-    } catch (Exception e) {
-      Log.e(TAG, "Cannot open DAO", e);
-    }
+    response.setAddress(address);
+    // 0 is kept for unknown
+    if (ttl != DNSUpstream.NO_TTL) response.setTtl(Math.max(ttl, 1));
+    DNSCache.Entry entry = new DNSCache.Entry(questDomainName, ips, ipv6,
+        expiresAt(response.getTimestamp(), response.getTtl()), response.getTtl() <= 0);
+    memoryCache.put(entry);
+    reverseIndex.put(address, questDomainName, response.getTimestamp());
+    cacheWriter.add(response);
+    return entry;
   }
 
-  private synchronized void updateCache(DNSResponse response) {
-    try {
-      Dao<DNSResponse, String> dnsCacheDao = helper.getDNSCacheDao();
-      dnsCacheDao.createOrUpdate(response);
-    } catch (Exception e) {
-      Log.e(TAG, "Cannot open DAO", e);
+  /** Add a negative answer to cache, persisted only if asked to */
+  private DNSCache.Entry addNegativeToCache(String questDomainName, int rcode, long expire) {
+    DNSResponse response = new DNSResponse(questDomainName);
+    DNSCache.Entry entry =
+        new DNSCache.Entry(questDomainName, rcode, response.getTimestamp() + expire);
+    memoryCache.put(entry);
+    if (persistNegative && rcode == DNSMessage.RCODE_NXDOMAIN) {
+      response.setAddress(CANT_RESOLVE);
+      cacheWriter.add(response);
     }
+    return entry;
+  }
+
+  /** Replace the overrides with the lines of a hosts table */
+  public void setHosts(String text) {
+    DNSHosts table = DNSHosts.parse(text);
+    if (orgHost != null) table.put(orgHost.first, orgHost.second);
+    hosts = table;
+    Log.d(TAG, "Hosts loaded: " + table.size() + " names");
+  }
+
+  /**
+   * @param ttl the TTL of the answer, 0 if unknown
+   * @return when the answer expires, within the bounds
+   */
+  private long expiresAt(long timestamp, int ttl) {
+    // the relay never gives one, ask it again only once in a while
+    if (ttl <= 0) ttl = maxTtl;
+    ttl = Math.min(Math.max(ttl, minTtl), maxTtl);
+    return timestamp + ttl * 1000L;
+  }
+
+  /** Bounds of the TTL kept from the upstream answers, in seconds */
+  public void setTtlBounds(int min, int max) {
+    if (min < 0) min = 0;
+    if (max < min) max = min;
+    minTtl = min;
+    maxTtl = max;
+  }
+
+  public void setServeStale(boolean serveStale) {
+    this.serveStale = serveStale;
+  }
+
+  public void setPersistNegative(boolean persistNegative) {
+    this.persistNegative = persistNegative;
   }
 
   public void close() throws IOException {
-    serverSocket.close();
+    if (reverseServer != null) reverseServer.close();
+    if (tcpServer != null) tcpServer.close();
     datagramSocket.close();
+    workers.shutdownNow();
+    prefetchTimer.shutdownNow();
+    raceTimer.shutdownNow();
+    upstreamPool.shutdownNow();
+    relay.close();
+    telemetry.flush();
+    writeSnapshot();
+    cacheWriter.close();
     if (helper != null) {
       OpenHelperManager.releaseHelper();
       helper = null;
@@ -141,129 +353,143 @@ public class DNSServer implements Runnable {
     * DOMAIN NAMES - IMPLEMENTATION AND SPECIFICATION
     * http://www.ietf.org/rfc/rfc1035.txt
     */
-  protected byte[] createDNSResponse(byte[] quest, byte[] ips) {
-    int start = 0;
-    byte[] response = new byte[4096];
-
-    for (int val : DNS_HEADERS) {
-      response[start] = (byte) val;
-      start++;
-    }
-
-    System.arraycopy(quest, 0, response, 0, 2); /* 0:2 | NAME */
-    System.arraycopy(quest, 4, response, 4, 2); /* 4:6 -> 4:6 | TYPE */
-    System.arraycopy(quest, 4, response, 6, 2); /* 4:6 -> 7:9 | CLASS */
-    /* 10:14 | TTL */
-    System.arraycopy(quest, DNS_PKG_HEADER_LEN, response, start, quest.length - DNS_PKG_HEADER_LEN); /* 12:~ -> 15:~ */
-    start += quest.length - DNS_PKG_HEADER_LEN;
-
-    for (int val : DNS_PAYLOAD) {
-      response[start] = (byte) val;
-      start++;
+  protected int createDNSResponse(DNSMessage msg, DNSCache.Entry entry, byte[] response,
+      int limit) {
+    int start = msg.writeResponse(response, entry.rcode);
+
+    byte[] addrs = null;
+    int addrLength = 4;
+    switch (msg.getQuestionType()) {
+      case DNSMessage.TYPE_A:
+      case DNSMessage.TYPE_ANY:
+        addrs = entry.ips;
+        break;
+      case DNSMessage.TYPE_AAAA:
+        addrs = entry.ipv6;
+        addrLength = 16;
+        break;
     }
 
-    /* IP address in response */
-    for (byte ip : ips) {
-      response[start] = ip;
-      start++;
+    /* IP addresses in response, rotated for each response */
+    if (addrs != null && addrs.length > 0) {
+      // what is left of the TTL, the stale answers are only good until refreshed
+      long remaining = (entry.expires - System.currentTimeMillis()) / 1000;
+      int ttl = remaining < 1 ? STALE_TTL : (int) Math.min(remaining, maxTtl);
+      if (entry.ttlUnknown) ttl = Math.min(ttl, UNKNOWN_TTL);
+      int count = addrs.length / addrLength;
+      int rotation = entry.nextRotation();
+      for (int i = 0; i < count; i++) {
+        int offset = ((rotation + i) % count) * addrLength;
+        int next = msg.writeAddress(response, start, limit, addrs, offset, addrLength, ttl);
+        if (next < 0) break;
+        start = next;
+      }
     }
 
-    byte[] result = new byte[start];
-    System.arraycopy(response, 0, result, 0, start);
-
-    return result;
+    return msg.finish(response, start);
   }
 
-  public void fetchAnswerHTTP(final DatagramPacket dnsq, final byte[] quest) {
+  /** Add an upstream to the resolver chain, raced with the HTTP relay */
+  public void addUpstream(DNSUpstream upstream) {
+    upstreams.add(upstream);
+  }
 
-    final String domain = getRequestDomain(quest);
+  public void fetchAnswer(final String domain) {
 
     DomainValidator dv = DomainValidator.getInstance();
     /* Not support reverse domain name query */
     if (domain.endsWith("ip6.arpa") || domain.endsWith("in-addr.arpa") || !dv.isValid(domain)) {
-      final byte[] answer = createDNSResponse(quest, parseIPString("127.0.0.1"));
-      addToCache(domain, answer);
-      sendDns(answer, dnsq, datagramSocket);
-      synchronized (domains) {
-        domains.remove(domain);
-      }
+      DNSCache.Entry entry = addToCache(domain, "127.0.0.1", DNSUpstream.NO_TTL);
+      answerWaiting(domain, entry);
       return;
     }
 
-    final long startTime = System.currentTimeMillis();
-
-    AsyncHttpResponseHandler handler = new AsyncHttpResponseHandler() {
+    Race race = new Race(domain, selectUpstreams());
+    races.put(domain, race);
+    race.startNext();
+  }
 
+  /** @return the upstreams to race, fastest first and the slowest skipped */
+  private List<DNSUpstream> selectUpstreams() {
+    List<DNSUpstream> chain = new ArrayList<DNSUpstream>(upstreams);
+    if (chain.size() < 2) return chain;
+    Collections.sort(chain, new Comparator<DNSUpstream>() {
       @Override
-      public void onFinish() {
-        synchronized (domains) {
-          domains.remove(domain);
-        }
+      public int compare(DNSUpstream a, DNSUpstream b) {
+        long la = a.getLatency();
+        long lb = b.getLatency();
+        return la < lb ? -1 : (la == lb ? 0 : 1);
       }
+    });
+    // keep measuring the slowest one now and then, it may have recovered
+    if (chain.size() > 2 && lookups.incrementAndGet() % UPSTREAM_PROBE != 0) {
+      chain.remove(chain.size() - 1);
+    }
+    return chain;
+  }
 
-      @Override
-      public void onSuccess(String response) {
-        try {
+  /** @return true if the answer holds addresses that can be trusted */
+  private boolean isUsable(String answer) {
+    return hasAddresses(answer) && !DNSBlackList.isPoisoned(answer);
+  }
 
-          byte[] answer = null;
+  /** @return true if the answer is a well formed list of addresses */
+  private boolean hasAddresses(String answer) {
+    if (answer == null || CANT_RESOLVE.equals(answer)) return false;
+    byte[] ips = parseIPString(answer);
+    byte[] ipv6 = parseIPv6String(answer);
+    return ips != null && ipv6 != null && ips.length + ipv6.length > 0;
+  }
 
-          if (response == null) {
-            Log.e(TAG, "Failed to resolve domain name: " + domain);
-            return;
-          }
+  /** Cache and send the relay answer of a domain */
+  private void handleAnswer(String domain, String response, int ttl, long startTime) {
+    try {
 
-          response = response.trim();
+      if (response == null) {
+        Log.e(TAG, "Failed to resolve domain name: " + domain);
+        failLookup(domain);
+        return;
+      }
 
-          if (response.equals(CANT_RESOLVE)) {
-            Log.e(TAG, "Cannot resolve domain name: " + domain);
-            return;
-          }
+      response = response.trim();
 
-          byte[] ips = parseIPString(response);
-          if (ips != null) {
-            answer = createDNSResponse(quest, ips);
-          }
+      if (response.equals(CANT_RESOLVE)) {
+        Log.e(TAG, "Cannot resolve domain name: " + domain);
+        stats.nxdomain.incrementAndGet();
+        answerWaiting(domain,
+            addNegativeToCache(domain, DNSMessage.RCODE_NXDOMAIN, NXDOMAIN_EXPIRE));
+        return;
+      }
 
-          if (answer != null && answer.length != 0) {
-            addToCache(domain, answer);
-            sendDns(answer, dnsq, datagramSocket);
-            Log.d(TAG, "Success to resolve: "
-                + domain
-                + " quest_length: "
-                + quest.length
-                + " answer_length: "
-                + answer.length
-                + " cost: "
-                + (System.currentTimeMillis() - startTime) / 1000
-                + "s "
-                +
-                "ip: "
-                + DNSResponse.getIPString(answer));
-          } else {
-            Log.e(TAG, "The size of DNS packet returned is 0");
-          }
-        } catch (Exception e) {
-          // Nothing
+      DNSCache.Entry entry = addToCache(domain, response, ttl);
+
+      if (entry != null) {
+        answerWaiting(domain, entry);
+        if (DEBUG) {
+          Log.d(TAG, "Success to resolve: "
+              + domain
+              + " cost: "
+              + (System.currentTimeMillis() - startTime)
+              + "ms "
+              +
+              "ip: "
+              + response);
         }
+      } else {
+        Log.e(TAG, "Malformed answer of " + domain + ": " + response);
+        stats.servfail.incrementAndGet();
+        answerWaiting(domain,
+            addNegativeToCache(domain, DNSMessage.RCODE_SERVFAIL, SERVFAIL_EXPIRE));
       }
-    };
-
-    resolveDomainName(domain, handler);
+    } catch (Exception e) {
+      failLookup(domain);
+    }
   }
 
-  /** Resolve UDP DNS request */
-  protected String getRequestDomain(byte[] request) {
-    String requestDomain = "";
-    int reqLength = request.length;
-    if (reqLength > 13) {
-      byte[] question = new byte[reqLength - 12];
-      System.arraycopy(request, 12, question, 0, reqLength - 12);
-      requestDomain = parseDomain(question);
-      if (requestDomain.length() > 1) {
-        requestDomain = requestDomain.substring(0, requestDomain.length() - 1);
-      }
-    }
-    return requestDomain;
+  /** Tell the waiting requests that the lookup failed, without caching it */
+  private void failLookup(String domain) {
+    stats.servfail.incrementAndGet();
+    answerWaiting(domain, new DNSCache.Entry(domain, DNSMessage.RCODE_SERVFAIL, 0));
   }
 
   public int getServPort() {
@@ -274,132 +500,331 @@ public class DNSServer implements Runnable {
     return datagramSocket.isClosed();
   }
 
-  /** Load cache from DB */
+  /** @return the counters of the proxy on one line */
+  public String getStats() {
+    return stats.format(workers.getQueue().size(), upstreams);
+  }
+
+  /** @return true if queries are answered over TCP as well */
+  public boolean isTcpEnabled() {
+    return tcpServer != null;
+  }
+
+  /** Load cache from DB, indexing the addresses for the reverse lookups */
   private void loadCache() {
+    trimCache();
     try {
       Dao<DNSResponse, String> dnsCacheDao = helper.getDNSCacheDao();
-      List<DNSResponse> list = dnsCacheDao.queryForAll();
-      for (DNSResponse resp : list) {
-        // expire after 10 days
-        if ((System.currentTimeMillis() - resp.getTimestamp()) > 864000000L) {
-          Log.d(TAG, "deleted: " + resp.getRequest());
-          dnsCacheDao.delete(resp);
-        }
+      QueryBuilder<DNSResponse, String> qb = dnsCacheDao.queryBuilder();
+      qb.selectColumns("request", "timestamp", "address");
+      qb.where().ne("address", CANT_RESOLVE);
+      qb.orderBy("timestamp", false).limit((long) REVERSE_INDEX_SIZE);
+      for (DNSResponse resp : qb.query()) {
+        reverseIndex.put(resp.peekAddress(), resp.getRequest(), resp.getTimestamp());
       }
     } catch (Exception e) {
       Log.e(TAG, "Cannot open DAO", e);
     }
   }
 
-  /** Parse request to domain name */
-  private String parseDomain(byte[] request) {
-
-    String result = "";
-    int length = request.length;
-    int partLength = request[0];
-    if (partLength == 0) return result;
+  /**
+   * Delete the expired answers in one statement, then the least recently
+   * requested ones above the size cap.
+   */
+  private synchronized void trimCache() {
     try {
-      byte[] left = new byte[length - partLength - 1];
-      System.arraycopy(request, partLength + 1, left, 0, length - partLength - 1);
-      result = new String(request, 1, partLength) + ".";
-      result += parseDomain(left);
+      Dao<DNSResponse, String> dnsCacheDao = helper.getDNSCacheDao();
+      DeleteBuilder<DNSResponse, String> expired = dnsCacheDao.deleteBuilder();
+      expired.where().lt("timestamp", System.currentTimeMillis() - CACHE_EXPIRE);
+      int deleted = expired.delete();
+
+      long count = dnsCacheDao.countOf();
+      if (count > MAX_CACHE_ROWS) {
+        // the request time of the oldest row to keep
+        QueryBuilder<DNSResponse, String> qb = dnsCacheDao.queryBuilder();
+        qb.selectColumns("request", "reqtimestamp");
+        qb.orderBy("reqtimestamp", true).offset(count - MAX_CACHE_ROWS).limit(1L);
+        DNSResponse oldest = qb.queryForFirst();
+        if (oldest != null) {
+          DeleteBuilder<DNSResponse, String> evicted = dnsCacheDao.deleteBuilder();
+          evicted.where().lt("reqtimestamp", oldest.getReqTimestamp());
+          deleted += evicted.delete();
+        }
+      }
+      Log.d(TAG, "Cache trimmed: " + deleted + " deleted, " + count + " before eviction");
     } catch (Exception e) {
-      Log.e(TAG, e.getLocalizedMessage());
+      Log.e(TAG, "Cannot open DAO", e);
     }
-    return result;
   }
 
-  /** Parse IP string into byte, do validation. */
+  /**
+   * Parse the IPv4 addresses of a '|' separated list into bytes, do
+   * validation. IPv6 addresses are skipped.
+   *
+   * @return 4 bytes per address, or null if an address is malformed
+   */
   protected byte[] parseIPString(String ip) {
-    byte[] result = null;
-    int value;
-    int i = 0;
-    String[] ips = null;
+    String[] addrs = ip.split("\\|");
+    byte[] result = new byte[addrs.length * 4];
+    int count = 0;
 
-    ips = ip.split("\\.");
+    for (String addr : addrs) {
+      addr = addr.trim();
+      if (addr.indexOf(':') >= 0) continue;
 
-    // Log.d(TAG, "Start parse ip string: " + ip + ", Sectons: " +
-    // ips.length);
+      String[] ips = addr.split("\\.");
 
-    int IP_SECTION_LEN = 4;
-    if (ips.length != IP_SECTION_LEN) {
-      Log.e(TAG, "Malformed IP string : " + ip);
-      return null;
-    }
+      // Log.d(TAG, "Start parse ip string: " + ip + ", Sectons: " +
+      // ips.length);
 
-    result = new byte[IP_SECTION_LEN];
+      int IP_SECTION_LEN = 4;
+      if (ips.length != IP_SECTION_LEN) {
+        Log.e(TAG, "Malformed IP string : " + ip);
+        return null;
+      }
 
-    for (String section : ips) {
-      try {
-        value = Integer.parseInt(section);
+      int i = 0;
+      for (String section : ips) {
+        try {
+          int value = Integer.parseInt(section);
+
+          /* 0.*.*.* and *.*.*.0 is invalid */
+          if ((i == 0 || i == 3) && value == 0 || value < 0 || value > 255) {
+            return null;
+          }
 
-        /* 0.*.*.* and *.*.*.0 is invalid */
-        if ((i == 0 || i == 3) && value == 0) {
+          result[count * 4 + i] = (byte) value;
+          i++;
+        } catch (NumberFormatException e) {
+          Log.e(TAG, "Malformed IP string: " + ip);
           return null;
         }
+      }
+      count++;
+    }
+
+    if (count == addrs.length) return result;
+    byte[] trimmed = new byte[count * 4];
+    System.arraycopy(result, 0, trimmed, 0, trimmed.length);
+    return trimmed;
+  }
 
-        result[i] = (byte) value;
-        i++;
-      } catch (NumberFormatException e) {
+  /**
+   * Parse the IPv6 addresses of a '|' separated list into bytes.
+   *
+   * @return 16 bytes per address, or null if an address is malformed
+   */
+  protected byte[] parseIPv6String(String ip) {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+
+    for (String addr : ip.split("\\|")) {
+      addr = addr.trim();
+      if (addr.indexOf(':') < 0) continue;
+      // only literals, never trigger a lookup
+      if (!addr.matches("[0-9a-fA-F:.]+")) {
+        Log.e(TAG, "Malformed IP string: " + ip);
+        return null;
+      }
+      try {
+        InetAddress inet = InetAddress.getByName(addr);
+        if (!(inet instanceof Inet6Address)) return null;
+        result.write(inet.getAddress(), 0, 16);
+      } catch (UnknownHostException e) {
         Log.e(TAG, "Malformed IP string: " + ip);
         return null;
       }
     }
 
-    return result;
+    return result.toByteArray();
   }
 
-  private synchronized DNSResponse queryFromCache(String questDomainName) {
+  /** @return the most requested domains of the recent past */
+  private synchronized List<DNSResponse> queryPopular() {
     try {
       Dao<DNSResponse, String> dnsCacheDao = helper.getDNSCacheDao();
-      return dnsCacheDao.queryForId(questDomainName);
+      QueryBuilder<DNSResponse, String> qb = dnsCacheDao.queryBuilder();
+      qb.where().gt("reqtimestamp", System.currentTimeMillis() - PREFETCH_WINDOW);
+      qb.orderBy("reqtimes", false).limit((long) PREFETCH_COUNT);
+      return qb.query();
     } catch (Exception e) {
       Log.e(TAG, "Cannot open DAO", e);
     }
     return null;
   }
 
-  private synchronized String reverseQueryFromCache(String address) {
+  /**
+   * Load the popular domains into the memory cache, and resolve them again
+   * in the background before their answer expires.
+   */
+  private void prefetch() {
+    List<DNSResponse> popular = queryPopular();
+    if (popular == null) return;
+
+    long now = System.currentTimeMillis();
+    int refreshed = 0;
+    int skipped = 0;
+    for (DNSResponse resp : popular) {
+      String domain = resp.getRequest();
+      if (CANT_RESOLVE.equals(resp.peekAddress())) continue;
+      long expires = expiresAt(resp.getTimestamp(), resp.getTtl());
+      if (expires > now) {
+        String address = resp.peekAddress();
+        byte[] ips = parseIPString(address);
+        byte[] ipv6 = parseIPv6String(address);
+        if (ips != null && ipv6 != null) {
+          memoryCache.put(new DNSCache.Entry(domain, ips, ipv6, expires, resp.getTtl() <= 0));
+          // refresh ahead, near the end of the TTL or if it ends before the next round
+          long left = expires - now;
+          long lifetime = expires - resp.getTimestamp();
+          if (left > lifetime / REFRESH_AHEAD && left > PREFETCH_INTERVAL) continue;
+        }
+      }
+
+      // never wait, the timer thread also loads, trims and saves the cache
+      if (!prefetchBudget.tryAcquire()) {
+        skipped++;
+        continue;
+      }
+      synchronized (domains) {
+        if (domains.containsKey(domain)) {
+          prefetchBudget.release();
+          continue;
+        }
+        domains.put(domain, new ArrayList<DNSRequest>());
+        prefetching.add(domain);
+      }
+      fetchAnswer(domain);
+      refreshed++;
+    }
+    Log.d(TAG, "Prefetch: " + popular.size() + " popular, " + refreshed + " refreshed, "
+        + skipped + " left for the next round");
+  }
+
+  /** Save the live answers of the memory cache for the next start */
+  private void writeSnapshot() {
     try {
-      Dao<DNSResponse, String> dnsCacheDao = helper.getDNSCacheDao();
-      List<DNSResponse> list = dnsCacheDao.queryForEq("address", address);
-      if (list == null || list.isEmpty()) return null;
-      Collections.sort(list);
-      return list.get(list.size() - 1).getRequest();
-    } catch (Exception e) {
-      Log.e(TAG, "Cannot open DAO", e);
+      snapshot.write(memoryCache.snapshot(System.currentTimeMillis()));
+    } catch (IOException e) {
+      Log.e(TAG, "Cannot write DNS snapshot", e);
     }
-    return null;
   }
 
-  /*
-    * Resolve host name by access a DNSRelay running on GAE:
-    *
-    * Example:
-    *
-    * http://www.hosts.dotcloud.com/lookup.php?(domain name encoded)
-    * http://gaednsproxy.appspot.com/?d=(domain name encoded)
-    */
-  private void resolveDomainName(String domain, AsyncHttpResponseHandler handler) {
+  /** Look up the memory cache first, then the snapshot and the database */
+  private DNSCache.Entry queryFromCache(String questDomainName) {
+    long now = System.currentTimeMillis();
+    DNSCache.Entry entry = memoryCache.get(questDomainName, now);
+    if (entry != null) return entry;
+
+    entry = snapshot.get(questDomainName, now);
+    // taken before its addresses were learned as poisoned, like the database rows
+    if (entry != null && !DNSBlackList.isPoisoned(entry.ips)) {
+      memoryCache.put(entry);
+      // count the hit like any other memory cache hit
+      return memoryCache.get(questDomainName, now);
+    }
 
-    String encode_temp = new String(Base64.encodeBase64(domain.getBytes(), false));
-    // Log.d(TAG, "BASE 64 pass 1: " + encode_temp);
-    String encode_domain = new String(Base64.encodeBase64(encode_temp.getBytes(), false));
-    // Log.d(TAG, "BASE 64 pass 2: " + encode_domain);
+    DNSResponse resp = queryFromDB(questDomainName);
+    if (resp == null) return null;
+    String address = resp.getAddress();
+    if (CANT_RESOLVE.equals(address)) {
+      if (resp.getTimestamp() + NXDOMAIN_EXPIRE < now) return null;
+      entry = new DNSCache.Entry(questDomainName, DNSMessage.RCODE_NXDOMAIN,
+          resp.getTimestamp() + NXDOMAIN_EXPIRE);
+      memoryCache.put(entry);
+      // counted like any other memory cache hit
+      return memoryCache.get(questDomainName, now);
+    }
+    // cached before its addresses were learned as poisoned
+    if (address == null || DNSBlackList.isPoisoned(address)) return null;
+    long expires = expiresAt(resp.getTimestamp(), resp.getTtl());
+    if (expires < now && !serveStale) return null;
+    byte[] ips = parseIPString(address);
+    byte[] ipv6 = parseIPv6String(address);
+    if (ips == null || ipv6 == null) return null;
+    // the row is unchanged, only the hit is written back
+    entry = new DNSCache.Entry(questDomainName, ips, ipv6, expires, resp.getTtl() <= 0);
+    if (expires < now) {
+      // stale, answer with it while it is resolved again
+      memoryCache.addHit(questDomainName, now);
+      refresh(questDomainName);
+      return entry;
+    }
+    memoryCache.put(entry);
+    return memoryCache.get(questDomainName, now);
+  }
 
-    String url = "http://myhosts.sinaapp.com/lookup.php?host=" + encode_domain;
-    String host = "myhosts.sinaapp.com";
-    url = url.replace(host, appHost);
+  /** Resolve a domain again in the background, unless it already is */
+  private void refresh(String domain) {
+    synchronized (domains) {
+      if (domains.containsKey(domain)) return;
+      domains.put(domain, new ArrayList<DNSRequest>());
+    }
+    fetchAnswer(domain);
+  }
 
-    client.get(url, host, handler);
+  private synchronized DNSResponse queryFromDB(String questDomainName) {
+    DNSResponse queued = cacheWriter.get(questDomainName);
+    if (queued != null) return queued;
+    try {
+      Dao<DNSResponse, String> dnsCacheDao = helper.getDNSCacheDao();
+      return dnsCacheDao.queryForId(questDomainName);
+    } catch (Exception e) {
+      Log.e(TAG, "Cannot open DAO", e);
+    }
+    return null;
   }
 
   @Override
   public void run() {
 
-    loadCache();
+    // the snapshot answers meanwhile, load the database in the background
+    prefetchTimer.execute(new Runnable() {
+      @Override
+      public void run() {
+        loadCache();
+      }
+    });
+    prefetchTimer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        prefetch();
+      }
+    }, 0, PREFETCH_INTERVAL, TimeUnit.MILLISECONDS);
+    prefetchTimer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        trimCache();
+      }
+    }, CACHE_TRIM_INTERVAL, CACHE_TRIM_INTERVAL, TimeUnit.MILLISECONDS);
+    prefetchTimer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        writeSnapshot();
+      }
+    }, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.MILLISECONDS);
+    prefetchTimer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        telemetry.flush();
+      }
+    }, TELEMETRY_INTERVAL, TELEMETRY_INTERVAL, TimeUnit.MILLISECONDS);
+
+    try {
+      reverseServer =
+          new DNSReverseServer(reverseIndex, this, InetAddress.getByName("127.0.0.1"),
+              REVERSE_PORT);
+      Thread reverseThread = new Thread(reverseServer, "DNSReverseServer");
+      reverseThread.setDaemon(true);
+      reverseThread.start();
+    } catch (IOException e) {
+      Log.e(TAG, "error to initilized reverse lookups at port " + REVERSE_PORT, e);
+    }
 
-    new Thread(new ReverseDNSServer()).start();
+    if (tcpServer != null) {
+      Thread tcpThread = new Thread(tcpServer, "DNSTcpServer");
+      tcpThread.setDaemon(true);
+      tcpThread.start();
+    }
 
     while (!datagramSocket.isClosed()) {
       try {
@@ -408,37 +833,7 @@ public class DNSServer implements Runnable {
 
         datagramSocket.receive(dnsq);
 
-        // try to build dnsreq here
-        byte[] data = dnsq.getData();
-        int dnsqLength = dnsq.getLength();
-        final byte[] udpreq = new byte[dnsqLength];
-        System.arraycopy(data, 0, udpreq, 0, dnsqLength);
-
-        // begin to query from dns cache
-        final String questDomain = getRequestDomain(udpreq);
-        DNSResponse resp = queryFromCache(questDomain);
-        if (orgCache.containsKey(questDomain)) {
-          byte[] ips = parseIPString(orgCache.get(questDomain));
-          byte[] answer = createDNSResponse(udpreq, ips);
-          addToCache(questDomain, answer);
-          sendDns(answer, dnsq, datagramSocket);
-          Log.d(TAG, "Custom DNS resolver: " + questDomain);
-        } else if (resp != null) {
-          String addr = resp.getAddress();
-          updateCache(resp);
-          sendDns(createDNSResponse(udpreq, parseIPString(addr)), dnsq, datagramSocket);
-          Log.d(TAG, "DNS cache hit: " + questDomain);
-          EasyTracker.getTracker().trackEvent("dns", "resolve", questDomain, 0L);
-        } else {
-          synchronized (domains) {
-            if (domains.contains(questDomain)) {
-              continue;
-            } else {
-              domains.add(questDomain);
-            }
-          }
-          fetchAnswerHTTP(dnsq, udpreq);
-        }
+        dispatch(new UdpRequest(dnsq), true);
       } catch (SocketException e) {
         Log.e(TAG, e.getLocalizedMessage());
         break;
@@ -451,62 +846,342 @@ public class DNSServer implements Runnable {
     }
   }
 
-  /** send response to the source */
-  private void sendDns(byte[] response, DatagramPacket dnsq, DatagramSocket srvSocket) {
+  /**
+   * Hand a request to the workers
+   *
+   * @param block wait while all of them are busy, or else answer SERVFAIL at
+   * once on the calling thread
+   */
+  void dispatch(DNSRequest request, boolean block) {
+    stats.recordQueue(workers.getQueue().size());
+    workers.execute(new RequestTask(request, block));
+  }
+
+  /** A request for the workers, see {@link BlockingPolicy} */
+  private class RequestTask implements Runnable {
+    final DNSRequest request;
+    final boolean block;
+
+    RequestTask(DNSRequest request, boolean block) {
+      this.request = request;
+      this.block = block;
+    }
+
+    @Override
+    public void run() {
+      handleRequest(request);
+    }
+
+    /** Called instead of run when the queue is full and the caller cannot wait */
+    void refuse() {
+      stats.servfail.incrementAndGet();
+      DNSMessage msg = messages.get();
+      if (msg.parse(request.data, request.offset, request.length) && msg.isQuery()) {
+        sendAnswer(msg, request,
+            new DNSCache.Entry(msg.getQuestionName(), DNSMessage.RCODE_SERVFAIL, 0));
+      } else {
+        sendError(request);
+      }
+    }
+  }
+
+  /** Answer a request that is not a query, if it gets an answer at all */
+  private void sendError(DNSRequest dnsq) {
+    // answered so that the client does not wait for its timeout
+    byte[] buffer = responseBuffer.get();
+    int length = DNSMessage.writeError(dnsq.data, dnsq.offset, dnsq.length, buffer);
+    if (length > 0) {
+      dnsq.reply(buffer, length);
+    } else {
+      dnsq.drop();
+    }
+  }
 
-    System.arraycopy(dnsq.getData(), 0, response, 0, 2);
+  /** Answer a single request, called from the worker pool */
+  private void handleRequest(DNSRequest dnsq) {
+    DNSMessage msg = messages.get();
+    if (!msg.parse(dnsq.data, dnsq.offset, dnsq.length) || !msg.isQuery()) {
+      if (DEBUG) Log.d(TAG, "Malformed DNS request");
+      stats.malformed.incrementAndGet();
+      sendError(dnsq);
+      return;
+    }
 
-    DatagramPacket resp = new DatagramPacket(response, 0, response.length);
-    resp.setPort(dnsq.getPort());
-    resp.setAddress(dnsq.getAddress());
+    // begin to query from dns cache
+    final String questDomain = msg.getQuestionName();
+    DNSCache.Entry entry;
+    DNSHosts.Host host = hosts.lookup(questDomain);
+    if (host != null) {
+      // never cached, so that a reload takes effect at once
+      reverseIndex.put(host.address, questDomain, System.currentTimeMillis());
+      sendAnswer(msg, dnsq, host.entry);
+      if (DEBUG) Log.d(TAG, "Custom DNS resolver: " + questDomain);
+    } else if ((entry = queryFromCache(questDomain)) != null) {
+      sendAnswer(msg, dnsq, entry);
+      stats.cacheHits.incrementAndGet();
+      stats.hitLatency.record((System.nanoTime() - dnsq.received) / 1000);
+      if (DEBUG) Log.d(TAG, "DNS cache hit: " + questDomain);
+      telemetry.record(questDomain);
+    } else {
+      stats.cacheMisses.incrementAndGet();
+      boolean full;
+      synchronized (domains) {
+        List<DNSRequest> waiting = domains.get(questDomain);
+        full = waiting != null && waiting.size() >= MAX_WAITING;
+        if (waiting != null && !full) {
+          // already being resolved, answer along with the first request
+          waiting.add(dnsq);
+          stats.coalesced.incrementAndGet();
+          return;
+        }
+        if (full) {
+          stats.servfail.incrementAndGet();
+        } else {
+          waiting = new ArrayList<DNSRequest>();
+          waiting.add(dnsq);
+          domains.put(questDomain, waiting);
+        }
+      }
+      if (full) {
+        sendAnswer(msg, dnsq, new DNSCache.Entry(questDomain, DNSMessage.RCODE_SERVFAIL, 0));
+      } else {
+        fetchAnswer(questDomain);
+      }
+    }
+  }
+
+  /** @return the requests waiting for the domain, which is no longer in flight */
+  private List<DNSRequest> finishLookup(String domain) {
+    synchronized (domains) {
+      if (prefetching.remove(domain)) prefetchBudget.release();
+      return domains.remove(domain);
+    }
+  }
+
+  /** Answer every request waiting for the domain, each with its own ID */
+  private void answerWaiting(String domain, DNSCache.Entry entry) {
+    List<DNSRequest> waiting = finishLookup(domain);
+    if (waiting == null) return;
+    if (entry == null) entry = new DNSCache.Entry(domain, DNSMessage.RCODE_SERVFAIL, 0);
+    for (DNSRequest dnsq : waiting) {
+      sendAnswer(dnsq, entry);
+      stats.missLatency.record((System.nanoTime() - dnsq.received) / 1000);
+    }
+  }
+
+  /** Parse the request again on the current thread and answer it */
+  private void sendAnswer(DNSRequest dnsq, DNSCache.Entry entry) {
+    DNSMessage msg = messages.get();
+    if (!msg.parse(dnsq.data, dnsq.offset, dnsq.length)) {
+      dnsq.drop();
+      return;
+    }
+    sendAnswer(msg, dnsq, entry);
+  }
+
+  private void sendAnswer(DNSMessage msg, DNSRequest dnsq, DNSCache.Entry entry) {
+    int count = entry.ips.length / 4 + entry.ipv6.length / 16;
+    int size = msg.getResponseSize(count, entry.ips.length + entry.ipv6.length);
+    byte[] buffer = responseBuffer.get();
+    if (size > buffer.length) {
+      buffer = new byte[size];
+      responseBuffer.set(buffer);
+    }
+    dnsq.reply(buffer, createDNSResponse(msg, entry, buffer, dnsq.getAnswerLimit(msg)));
+  }
+
+  /** send response to the source, reusing the request packet */
+  private void sendDns(byte[] response, int length, DatagramPacket dnsq,
+      DatagramSocket srvSocket) {
+
+    dnsq.setData(response, 0, length);
     try {
-      srvSocket.send(resp);
+      srvSocket.send(dnsq);
     } catch (IOException e) {
       Log.e(TAG, "", e);
     }
   }
 
-  private class ReverseDNSServer implements Runnable {
-    @Override
-    public void run() {
-      try {
-        serverSocket = new ServerSocket(9090);
-      } catch (IOException ignored) {
+  /**
+   * The upstreams raced for one domain. They are started one after the
+   * other, the next one early if the previous one failed, and the first
+   * usable answer is sent. NXDOMAIN is only sent once nobody had an address.
+   */
+  private class Race implements DNSUpstream.Callback {
+    private final String domain;
+    private final List<DNSUpstream> chain;
+    private final long startTime = System.currentTimeMillis();
+    private final long[] started;
+
+    private int next = 0;
+    private int running = 0;
+    private boolean done = false;
+    private boolean nxdomain = false;
+    /** First addresses of each kind of upstream, compared to learn poisoned ones */
+    private String trustedAnswer = null;
+    private String untrustedAnswer = null;
+
+    Race(String domain, List<DNSUpstream> chain) {
+      this.domain = domain;
+      this.chain = chain;
+      this.started = new long[chain.size()];
+    }
+
+    void startNext() {
+      final DNSUpstream upstream;
+      boolean more;
+      synchronized (this) {
+        if (done) return;
+        if (next < chain.size()) {
+          started[next] = System.nanoTime();
+          upstream = chain.get(next++);
+          running++;
+          more = next < chain.size();
+        } else if (running == 0) {
+          done = true;
+          upstream = null;
+          more = false;
+        } else {
+          return;
+        }
+      }
+      if (upstream == null) {
+        finish();
         return;
       }
-      while (serverSocket != null && !serverSocket.isClosed()) {
-        Socket client = null;
-        try {
-          client = serverSocket.accept();
-          BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-          PrintWriter out = new PrintWriter(client.getOutputStream());
-          String addr = in.readLine();
-          String domain = reverseQueryFromCache(addr);
-          if (domain == null) {
-            out.print("null");
-            Log.d(TAG, "reverse query: " + addr + " null");
-          } else {
-            Log.d(TAG, "reverse query: " + addr + " " + domain);
-            out.print(domain);
+      if (more) {
+        raceTimer.schedule(new Runnable() {
+          @Override
+          public void run() {
+            startNext();
           }
-          out.flush();
-          out.close();
-          in.close();
-          if (client != null) {
-            client.close();
-          }
-        } catch (IOException e) {
-          Log.e(TAG, "reverse socket: ", e);
-        } finally {
-          if (client != null) {
-            try {
-              client.close();
-            } catch (IOException ignored) {
-              // Nothing
-            }
+        }, UPSTREAM_STAGGER, TimeUnit.MILLISECONDS);
+      }
+      upstream.resolve(domain, upstreamPool, this);
+    }
+
+    @Override
+    public void onResult(DNSUpstream upstream, String answer) {
+      int ttl = DNSUpstream.getTtl(answer);
+      answer = DNSUpstream.getAddresses(answer);
+      boolean valid = hasAddresses(answer);
+      boolean usable = valid && !DNSBlackList.isPoisoned(answer);
+      boolean notFound = CANT_RESOLVE.equals(answer);
+      int index = chain.indexOf(upstream);
+      if (index >= 0) {
+        long elapsed = (System.nanoTime() - started[index]) / 1000;
+        upstream.recordLatency(elapsed / 1000, usable || notFound);
+        stats.upstreamLatency.record(elapsed);
+      }
+      if (usable || notFound) {
+        stats.upstreamSuccesses.incrementAndGet();
+      } else {
+        stats.upstreamFailures.incrementAndGet();
+      }
+      if (answer != null && !usable && !notFound) {
+        Log.w(TAG, "Unusable answer of " + domain + " from " + upstream + ": " + answer);
+      }
+
+      boolean win = false;
+      boolean failed = false;
+      String trusted = null;
+      String untrusted = null;
+      synchronized (this) {
+        running--;
+        if (valid) {
+          if (upstream.isTrusted()) {
+            if (trustedAnswer == null) trustedAnswer = answer;
+          } else if (untrustedAnswer == null) {
+            untrustedAnswer = answer;
           }
+          trusted = trustedAnswer;
+          untrusted = untrustedAnswer;
         }
       }
+      // answers that came after the race was won still teach the blacklist
+      if (trusted != null && untrusted != null) DNSBlackList.compare(domain, untrusted, trusted);
+
+      synchronized (this) {
+        if (done) return;
+        if (usable) {
+          win = true;
+          done = true;
+        } else {
+          if (notFound) nxdomain = true;
+          failed = true;
+        }
+      }
+
+      if (win) {
+        races.remove(domain, this);
+        handleAnswer(domain, answer, ttl, startTime);
+      } else if (failed) {
+        // do not wait for the stagger, try the next one now
+        startNext();
+      }
+    }
+
+    /** Nobody is left with an answer */
+    private void finish() {
+      races.remove(domain, this);
+      if (nxdomain) {
+        handleAnswer(domain, CANT_RESOLVE, DNSUpstream.NO_TTL, startTime);
+      } else {
+        failLookup(domain);
+      }
+    }
+  }
+
+  /** A query taken off the UDP socket, answered with its own packet */
+  private class UdpRequest extends DNSRequest {
+    private final DatagramPacket dnsq;
+
+    UdpRequest(DatagramPacket dnsq) {
+      super(dnsq.getData(), dnsq.getOffset(), dnsq.getLength());
+      this.dnsq = dnsq;
+    }
+
+    @Override
+    public int getAnswerLimit(DNSMessage msg) {
+      return msg.getAnswerLimit();
+    }
+
+    @Override
+    public void reply(byte[] response, int length) {
+      sendDns(response, length, dnsq, datagramSocket);
+    }
+  }
+
+  /** Names the worker threads and keeps them from blocking the process exit */
+  private static class WorkerFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "DNSWorker-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+
+  /**
+   * Back-pressure for the receive loop: when the queue is full, wait for a
+   * free slot instead of dropping the request or running it on the receiver.
+   * Requests whose caller cannot wait, like the TCP selector, are refused.
+   */
+  private static class BlockingPolicy implements RejectedExecutionHandler {
+    @Override
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+      if (r instanceof RequestTask && !((RequestTask) r).block) {
+        ((RequestTask) r).refuse();
+        return;
+      }
+      if (executor.isShutdown()) return;
+      try {
+        executor.getQueue().put(r);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
     }
   }
-}
+}
\ No newline at end of file
@@ -0,0 +1,215 @@
+package org.gaeproxy;
+
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Binary snapshot of the hot part of the DNS cache, read through a memory
+ * mapping so that answers are served before the database is opened.
+ *
+ * The file is a header (magic, count), a table of (domain hash, record
+ * offset) slots sorted by hash for a binary search, then the records:
+ * expiry, domain, flags, IPv4 and IPv6 addresses. Only absolute reads are done on
+ * the mapping, so it is shared by the workers without locking.
+ */
+public class DNSSnapshot {
+
+  private static final String TAG = "GAEDNSProxy";
+
+  private static final int MAGIC = 0x47445332;
+  private static final int HEADER_LEN = 8;
+  private static final int SLOT_LEN = 12;
+  /** Addresses of one family kept per record */
+  private static final int MAX_ADDRESSES = 255;
+  /** Flag of the records whose TTL is unknown */
+  private static final int TTL_UNKNOWN = 1;
+
+  private final File file;
+
+  /** The mapped snapshot, null if there is none */
+  private volatile ByteBuffer mapped;
+  private volatile int count;
+
+  public DNSSnapshot(File file) {
+    this.file = file;
+  }
+
+  /** Map the snapshot file, if there is a valid one */
+  public boolean load() {
+    if (!file.exists()) return false;
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(file, "r");
+      FileChannel channel = raf.getChannel();
+      // the mapping stays valid once the channel is closed
+      ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buf.capacity() < HEADER_LEN || buf.getInt(0) != MAGIC) {
+        Log.w(TAG, "Invalid DNS snapshot");
+        return false;
+      }
+      int n = buf.getInt(4);
+      if (n < 0 || HEADER_LEN + (long) n * SLOT_LEN > buf.capacity()) {
+        Log.w(TAG, "Invalid DNS snapshot");
+        return false;
+      }
+      count = n;
+      mapped = buf;
+      return true;
+    } catch (IOException e) {
+      Log.e(TAG, "Cannot map DNS snapshot", e);
+      return false;
+    } finally {
+      if (raf != null) {
+        try {
+          raf.close();
+        } catch (IOException ignored) {
+          // Nothing
+        }
+      }
+    }
+  }
+
+  /** @return the live entry of the domain, or null if missing or expired */
+  public DNSCache.Entry get(String domain, long now) {
+    ByteBuffer buf = mapped;
+    if (buf == null) return null;
+    int n = count;
+    long hash = hash(domain);
+
+    try {
+      int lo = 0;
+      int hi = n - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        long h = buf.getLong(HEADER_LEN + mid * SLOT_LEN);
+        if (h < hash) {
+          lo = mid + 1;
+        } else if (h > hash) {
+          hi = mid - 1;
+        } else {
+          // walk back to the first slot of the hash, then check each record
+          while (mid > 0 && buf.getLong(HEADER_LEN + (mid - 1) * SLOT_LEN) == hash) mid--;
+          for (; mid < n && buf.getLong(HEADER_LEN + mid * SLOT_LEN) == hash; mid++) {
+            DNSCache.Entry entry =
+                readRecord(buf, buf.getInt(HEADER_LEN + mid * SLOT_LEN + 8), domain);
+            if (entry != null) return entry.expires < now ? null : entry;
+          }
+          return null;
+        }
+      }
+    } catch (IndexOutOfBoundsException e) {
+      Log.w(TAG, "Corrupt DNS snapshot");
+      mapped = null;
+    }
+    return null;
+  }
+
+  /** @return the entry of the record at pos, or null if it is another domain */
+  private static DNSCache.Entry readRecord(ByteBuffer buf, int pos, String domain) {
+    long expires = buf.getLong(pos);
+    int len = buf.getShort(pos + 8) & 0xffff;
+    if (len != domain.length()) return null;
+    pos += 10;
+    for (int i = 0; i < len; i++) {
+      if ((char) (buf.get(pos + i) & 0xff) != domain.charAt(i)) return null;
+    }
+    pos += len;
+    boolean ttlUnknown = (buf.get(pos++) & TTL_UNKNOWN) != 0;
+    byte[] ips = new byte[(buf.get(pos) & 0xff) * 4];
+    byte[] ipv6 = new byte[(buf.get(pos + 1) & 0xff) * 16];
+    pos += 2;
+    for (int i = 0; i < ips.length; i++) {
+      ips[i] = buf.get(pos++);
+    }
+    for (int i = 0; i < ipv6.length; i++) {
+      ipv6[i] = buf.get(pos++);
+    }
+    return new DNSCache.Entry(domain, ips, ipv6, expires, ttlUnknown);
+  }
+
+  /**
+   * Write the positive entries to a new snapshot, replacing the old one
+   * once it is complete.
+   */
+  public synchronized void write(List<DNSCache.Entry> entries) throws IOException {
+    final List<DNSCache.Entry> records = new ArrayList<DNSCache.Entry>(entries.size());
+    int size = HEADER_LEN;
+    for (DNSCache.Entry entry : entries) {
+      if (entry.isNegative() || entry.domain.length() > 0xffff) continue;
+      records.add(entry);
+      size += SLOT_LEN + 13 + entry.domain.length()
+          + Math.min(entry.ips.length, MAX_ADDRESSES * 4)
+          + Math.min(entry.ipv6.length, MAX_ADDRESSES * 16);
+    }
+
+    final long[] hashes = new long[records.size()];
+    List<Integer> order = new ArrayList<Integer>(records.size());
+    for (int i = 0; i < records.size(); i++) {
+      hashes[i] = hash(records.get(i).domain);
+      order.add(i);
+    }
+    Collections.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        long ha = hashes[a];
+        long hb = hashes[b];
+        return ha < hb ? -1 : (ha == hb ? 0 : 1);
+      }
+    });
+
+    ByteBuffer buf = ByteBuffer.allocate(size);
+    buf.putInt(MAGIC).putInt(records.size());
+    int pos = HEADER_LEN + records.size() * SLOT_LEN;
+    for (int i : order) {
+      DNSCache.Entry entry = records.get(i);
+      buf.putLong(hashes[i]).putInt(pos);
+
+      int v4 = Math.min(entry.ips.length / 4, MAX_ADDRESSES);
+      int v6 = Math.min(entry.ipv6.length / 16, MAX_ADDRESSES);
+      int len = entry.domain.length();
+      buf.putLong(pos, entry.expires);
+      buf.putShort(pos + 8, (short) len);
+      pos += 10;
+      for (int j = 0; j < len; j++) {
+        buf.put(pos++, (byte) entry.domain.charAt(j));
+      }
+      buf.put(pos++, (byte) (entry.ttlUnknown ? TTL_UNKNOWN : 0));
+      buf.put(pos++, (byte) v4);
+      buf.put(pos++, (byte) v6);
+      for (int j = 0; j < v4 * 4; j++) {
+        buf.put(pos++, entry.ips[j]);
+      }
+      for (int j = 0; j < v6 * 16; j++) {
+        buf.put(pos++, entry.ipv6[j]);
+      }
+    }
+
+    File tmp = new File(file.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      out.write(buf.array(), 0, pos);
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) throw new IOException("Cannot replace " + file);
+  }
+
+  /** 64 bit FNV-1a of the domain */
+  static long hash(String domain) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < domain.length(); i++) {
+      h ^= domain.charAt(i) & 0xff;
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+}
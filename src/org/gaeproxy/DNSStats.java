@@ -0,0 +1,140 @@
+package org.gaeproxy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the DNS proxy. Everything is updated
+ * with atomics from the workers, and read as one line of "name=value" pairs
+ * for the stats command of the local endpoint.
+ */
+public class DNSStats {
+
+  /**
+   * Latency histogram with logarithmic buckets, each power of two split in
+   * 16 linear sub-buckets, so any value is kept within 1/16 of its size.
+   */
+  public static class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    /** Values up to 2^30 us, about 18 minutes */
+    private static final int MAX_EXPONENT = 30;
+
+    private final AtomicLongArray buckets =
+        new AtomicLongArray((MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+
+    public void record(long micros) {
+      if (micros < 0) micros = 0;
+      buckets.incrementAndGet(index(micros));
+      count.incrementAndGet();
+      sum.addAndGet(micros);
+    }
+
+    private static int index(long value) {
+      if (value < SUB_COUNT) return (int) value;
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      if (exponent > MAX_EXPONENT) return (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT - 1;
+      int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+      return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /** @return the lowest value of a bucket */
+    private static long lowest(int index) {
+      if (index < SUB_COUNT) return index;
+      int exponent = index / SUB_COUNT + SUB_BITS - 1;
+      int sub = index % SUB_COUNT;
+      return (1L << exponent) + ((long) sub << (exponent - SUB_BITS));
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getMean() {
+      long n = count.get();
+      return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /** @return the value below which the given fraction of the samples fall */
+    public long getPercentile(double fraction) {
+      long n = count.get();
+      if (n == 0) return 0;
+      long rank = (long) Math.ceil(n * fraction);
+      long seen = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) return lowest(i + 1) - 1;
+      }
+      return lowest(buckets.length() - 1);
+    }
+
+    void append(StringBuilder sb, String name) {
+      sb.append(' ').append(name).append(".count=").append(getCount());
+      sb.append(' ').append(name).append(".mean=").append(getMean());
+      sb.append(' ').append(name).append(".p50=").append(getPercentile(0.5));
+      sb.append(' ').append(name).append(".p90=").append(getPercentile(0.9));
+      sb.append(' ').append(name).append(".p99=").append(getPercentile(0.99));
+    }
+  }
+
+  public final AtomicLong cacheHits = new AtomicLong();
+  public final AtomicLong cacheMisses = new AtomicLong();
+  /** Misses answered along with a lookup already in flight */
+  public final AtomicLong coalesced = new AtomicLong();
+  public final AtomicLong malformed = new AtomicLong();
+  public final AtomicLong upstreamSuccesses = new AtomicLong();
+  public final AtomicLong upstreamFailures = new AtomicLong();
+  public final AtomicLong servfail = new AtomicLong();
+  public final AtomicLong nxdomain = new AtomicLong();
+  /** Highest number of requests seen waiting for a worker */
+  private final AtomicInteger peakQueue = new AtomicInteger();
+
+  /** From the request taken off the socket to the answer sent, in us */
+  public final Histogram hitLatency = new Histogram();
+  public final Histogram missLatency = new Histogram();
+  /** Time upstreams took to answer, in us */
+  public final Histogram upstreamLatency = new Histogram();
+
+  private final long started = System.currentTimeMillis();
+
+  public void recordQueue(int depth) {
+    int peak;
+    while (depth > (peak = peakQueue.get())) {
+      if (peakQueue.compareAndSet(peak, depth)) break;
+    }
+  }
+
+  /** @return every counter on one line, latencies in us */
+  public String format(int queueDepth, Iterable<DNSUpstream> upstreams) {
+    StringBuilder sb = new StringBuilder();
+    long hits = cacheHits.get();
+    long misses = cacheMisses.get();
+    sb.append("uptime=").append((System.currentTimeMillis() - started) / 1000);
+    sb.append(" hits=").append(hits);
+    sb.append(" misses=").append(misses);
+    sb.append(" hit_ratio=").append(hits + misses == 0 ? 0 : hits * 100 / (hits + misses));
+    sb.append("% coalesced=").append(coalesced.get());
+    sb.append(" malformed=").append(malformed.get());
+    sb.append(" nxdomain=").append(nxdomain.get());
+    sb.append(" servfail=").append(servfail.get());
+    sb.append(" upstream.ok=").append(upstreamSuccesses.get());
+    sb.append(" upstream.failed=").append(upstreamFailures.get());
+    sb.append(" queue=").append(queueDepth);
+    sb.append(" queue.peak=").append(peakQueue.get());
+    hitLatency.append(sb, "hit");
+    missLatency.append(sb, "miss");
+    upstreamLatency.append(sb, "upstream");
+    for (DNSUpstream upstream : upstreams) {
+      sb.append(' ').append(upstream.name.replace(' ', '_'));
+      sb.append(".ok=").append(upstream.getSuccesses());
+      sb.append(' ').append(upstream.name.replace(' ', '_'));
+      sb.append(".failed=").append(upstream.getFailures());
+      sb.append(' ').append(upstream.name.replace(' ', '_'));
+      sb.append(".latency=").append(upstream.getLatency());
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,294 @@
+package org.gaeproxy;
+
+import android.util.Log;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * DNS over TCP on the port of the UDP socket. One selector thread accepts
+ * and frames the connections, each query with its 2 byte length prefix, and
+ * hands them to the workers of the {@link DNSServer} like the UDP ones.
+ * Several queries may be sent on one connection and are answered in the
+ * order the answers arrive.
+ *
+ * Reference to:
+ *
+ * DNS Transport over TCP - Implementation Requirements
+ * http://www.ietf.org/rfc/rfc5966.txt
+ */
+public class DNSTcpServer implements Runnable {
+
+  private static final String TAG = "GAEDNSProxy";
+
+  private static final int MAX_CONNECTIONS = 32;
+  /** Queries of one connection in flight before it stops being read */
+  private static final int MAX_PENDING = 16;
+  private static final long IDLE_TIMEOUT = 10 * 1000L;
+  private static final long SELECT_TIMEOUT = 1000L;
+
+  private final DNSServer server;
+  private final ServerSocketChannel serverChannel;
+  private final Selector selector;
+
+  /** Connections with new answers or pending changes, for the selector thread */
+  private final ConcurrentLinkedQueue<Connection> updates = new ConcurrentLinkedQueue<Connection>();
+
+  /** Read scratch buffer, only used on the selector thread */
+  private final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+
+  public DNSTcpServer(DNSServer server, InetAddress address, int port) throws IOException {
+    this.server = server;
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    try {
+      serverChannel.socket().setReuseAddress(true);
+      serverChannel.socket().bind(new InetSocketAddress(address, port));
+      serverChannel.configureBlocking(false);
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      serverChannel.close();
+      selector.close();
+      throw e;
+    }
+  }
+
+  public void close() {
+    try {
+      serverChannel.close();
+    } catch (IOException ignored) {
+      // Nothing
+    }
+    selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (serverChannel.isOpen()) {
+        selector.select(SELECT_TIMEOUT);
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          if (!key.isValid()) continue;
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          Connection conn = (Connection) key.attachment();
+          if (key.isReadable()) conn.read();
+          if (key.isValid() && key.isWritable()) conn.write();
+        }
+
+        Connection conn;
+        while ((conn = updates.poll()) != null) {
+          conn.update();
+        }
+
+        closeIdle();
+      }
+    } catch (ClosedSelectorException ignored) {
+      // closed from another thread
+    } catch (IOException e) {
+      Log.e(TAG, "TCP DNS server", e);
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() != null) ((Connection) key.attachment()).close();
+      }
+      try {
+        selector.close();
+      } catch (IOException ignored) {
+        // Nothing
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = serverChannel.accept();
+    if (channel == null) return;
+    // keep the slots of the selector for the connections already open
+    if (selector.keys().size() > MAX_CONNECTIONS) {
+      channel.close();
+      return;
+    }
+    channel.configureBlocking(false);
+    Connection conn = new Connection(channel);
+    conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+  }
+
+  private void closeIdle() {
+    long now = System.currentTimeMillis();
+    for (SelectionKey key : selector.keys()) {
+      Connection conn = (Connection) key.attachment();
+      if (conn != null && now - conn.lastActive > IDLE_TIMEOUT) conn.close();
+    }
+  }
+
+  private class Connection {
+    private final SocketChannel channel;
+    private SelectionKey key;
+
+    /** Length prefix and body of the query being read */
+    private final ByteBuffer header = ByteBuffer.allocate(2);
+    private ByteBuffer body;
+
+    /** Framed answers waiting to be written, guarded by this */
+    private final LinkedList<ByteBuffer> output = new LinkedList<ByteBuffer>();
+    /** Queries handed to the workers and not answered yet, guarded by this */
+    private int pending = 0;
+    /** The client is done sending */
+    private boolean eof = false;
+
+    private long lastActive = System.currentTimeMillis();
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    void read() {
+      readBuffer.clear();
+      int n;
+      try {
+        n = channel.read(readBuffer);
+      } catch (IOException e) {
+        close();
+        return;
+      }
+      if (n < 0) {
+        eof = true;
+        update();
+        return;
+      }
+      lastActive = System.currentTimeMillis();
+      readBuffer.flip();
+
+      while (readBuffer.hasRemaining()) {
+        if (body == null) {
+          transfer(readBuffer, header);
+          if (header.hasRemaining()) break;
+          int length = ((header.get(0) & 0xff) << 8) | (header.get(1) & 0xff);
+          header.clear();
+          if (length < DNSMessage.HEADER_LEN) {
+            close();
+            return;
+          }
+          body = ByteBuffer.allocate(length);
+        }
+        transfer(readBuffer, body);
+        if (body.hasRemaining()) break;
+        synchronized (this) {
+          pending++;
+        }
+        // never wait for the workers, that would stall every connection
+        server.dispatch(new TcpRequest(this, body.array()), false);
+        body = null;
+      }
+      update();
+    }
+
+    void write() {
+      try {
+        synchronized (this) {
+          while (!output.isEmpty()) {
+            ByteBuffer buf = output.getFirst();
+            channel.write(buf);
+            if (buf.hasRemaining()) break;
+            output.removeFirst();
+          }
+        }
+      } catch (IOException e) {
+        close();
+        return;
+      }
+      lastActive = System.currentTimeMillis();
+      update();
+    }
+
+    /** Queue a framed answer, called from the workers */
+    void send(byte[] response, int length) {
+      ByteBuffer buf = ByteBuffer.allocate(length + 2);
+      buf.put((byte) (length >> 8)).put((byte) length).put(response, 0, length);
+      buf.flip();
+      synchronized (this) {
+        output.add(buf);
+        pending--;
+      }
+      updates.add(this);
+      selector.wakeup();
+    }
+
+    /** Forget a query that gets no answer, called from the workers */
+    void drop() {
+      synchronized (this) {
+        pending--;
+      }
+      updates.add(this);
+      selector.wakeup();
+    }
+
+    /** Adjust the interest set, on the selector thread */
+    void update() {
+      if (!key.isValid()) return;
+      int ops = 0;
+      synchronized (this) {
+        if (!output.isEmpty()) ops |= SelectionKey.OP_WRITE;
+        if (!eof && pending < MAX_PENDING) ops |= SelectionKey.OP_READ;
+        if (eof && ops == 0 && pending <= 0) {
+          close();
+          return;
+        }
+      }
+      key.interestOps(ops);
+    }
+
+    void close() {
+      if (key != null) key.cancel();
+      try {
+        channel.close();
+      } catch (IOException ignored) {
+        // Nothing
+      }
+    }
+  }
+
+  private static void transfer(ByteBuffer src, ByteBuffer dst) {
+    int n = Math.min(src.remaining(), dst.remaining());
+    dst.put(src.array(), src.position(), n);
+    src.position(src.position() + n);
+  }
+
+  private static class TcpRequest extends DNSRequest {
+    private final Connection conn;
+
+    TcpRequest(Connection conn, byte[] data) {
+      super(data, 0, data.length);
+      this.conn = conn;
+    }
+
+    @Override
+    public int getAnswerLimit(DNSMessage msg) {
+      return msg.getAnswerLimit(DNSMessage.MAX_TCP_SIZE);
+    }
+
+    @Override
+    public void reply(byte[] response, int length) {
+      conn.send(response, length);
+    }
+
+    @Override
+    public void drop() {
+      conn.drop();
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package org.gaeproxy;
+
+import com.google.analytics.tracking.android.EasyTracker;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolve events for the analytics, off the hot path. One hit in
+ * {@link #SAMPLE_RATE} is counted per domain in memory, and the busiest
+ * domains are sent as one event each, with their scaled count, when
+ * {@link #flush()} is called.
+ */
+public class DNSTelemetry {
+
+  /** One hit in this many is counted */
+  private static final int SAMPLE_RATE = 8;
+  /** Domains counted between two flushes, the others are counted as one */
+  private static final int MAX_DOMAINS = 256;
+  /** Events sent per flush */
+  private static final int MAX_EVENTS = 16;
+  private static final String OTHERS = "(others)";
+
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicLong others = new AtomicLong();
+  /** Swapped on each flush, a hit racing with it may be dropped */
+  private volatile ConcurrentHashMap<String, AtomicLong> counts =
+      new ConcurrentHashMap<String, AtomicLong>();
+
+  /** Count a resolved domain, cheap enough for the workers */
+  public void record(String domain) {
+    if (hits.incrementAndGet() % SAMPLE_RATE != 0) return;
+    ConcurrentHashMap<String, AtomicLong> current = counts;
+    AtomicLong count = current.get(domain);
+    if (count == null) {
+      if (current.size() >= MAX_DOMAINS) {
+        others.incrementAndGet();
+        return;
+      }
+      AtomicLong created = new AtomicLong();
+      count = current.putIfAbsent(domain, created);
+      if (count == null) count = created;
+    }
+    count.incrementAndGet();
+  }
+
+  /** Send the counts collected since the last flush */
+  public synchronized void flush() {
+    ConcurrentHashMap<String, AtomicLong> current = counts;
+    counts = new ConcurrentHashMap<String, AtomicLong>();
+    long rest = others.getAndSet(0);
+
+    List<Map.Entry<String, AtomicLong>> sorted =
+        new ArrayList<Map.Entry<String, AtomicLong>>(current.entrySet());
+    Collections.sort(sorted, new Comparator<Map.Entry<String, AtomicLong>>() {
+      @Override
+      public int compare(Map.Entry<String, AtomicLong> a, Map.Entry<String, AtomicLong> b) {
+        long ca = a.getValue().get();
+        long cb = b.getValue().get();
+        return ca > cb ? -1 : (ca == cb ? 0 : 1);
+      }
+    });
+    for (int i = MAX_EVENTS; i < sorted.size(); i++) {
+      rest += sorted.get(i).getValue().get();
+    }
+    for (int i = 0; i < sorted.size() && i < MAX_EVENTS; i++) {
+      Map.Entry<String, AtomicLong> entry = sorted.get(i);
+      EasyTracker.getTracker()
+          .trackEvent("dns", "resolve", entry.getKey(), entry.getValue().get() * SAMPLE_RATE);
+    }
+    if (rest > 0) {
+      EasyTracker.getTracker().trackEvent("dns", "resolve", OTHERS, rest * SAMPLE_RATE);
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package org.gaeproxy;
+
+import java.io.IOException;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.Type;
+
+/** Plain DNS over UDP to a public server, straight from the device */
+public class DNSUdpUpstream extends DNSBlockingUpstream {
+
+  private static final int TIMEOUT = 5;
+
+  private final Resolver resolver;
+
+  public DNSUdpUpstream(String server) throws IOException {
+    super("udp://" + server);
+    resolver = new SimpleResolver(server);
+    resolver.setTCP(false);
+    resolver.setTimeout(TIMEOUT);
+  }
+
+  /** The GFW injects answers into plain DNS */
+  @Override
+  public boolean isTrusted() {
+    return false;
+  }
+
+  /** Ask for the IPv6 addresses too once the name turns out to exist */
+  @Override
+  protected String query(String domain) throws IOException {
+    String answer = toAnswer(resolver.send(newQuery(domain)));
+    if (answer == null || answer.equals(CANT_RESOLVE)) return answer;
+    try {
+      return merge(answer, toAnswer(resolver.send(newQuery(domain, Type.AAAA))));
+    } catch (IOException e) {
+      // the IPv4 addresses are good enough
+      return answer;
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package org.gaeproxy;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+/**
+ * One upstream of the resolver chain of {@link DNSServer}. Answers use the
+ * format of the HTTP relay: addresses separated by '|', optionally followed
+ * by ';' and the TTL of the records in seconds, or "Error" when the name
+ * does not exist. The latency of the answers is tracked so the chain
+ * can start the fastest upstream first and skip the slowest one.
+ */
+public abstract class DNSUpstream {
+
+  public static final String CANT_RESOLVE = "Error";
+  /** TTL of the answers that do not carry one */
+  public static final int NO_TTL = -1;
+
+  /** Latency charged for a failure, in ms */
+  private static final long FAILURE_LATENCY = 10 * 1000L;
+
+  public interface Callback {
+    /** @param answer the answer, or null if the upstream failed */
+    void onResult(DNSUpstream upstream, String answer);
+  }
+
+  public final String name;
+
+  /** Moving average of the latency, in ms */
+  private volatile long latency = 0;
+  private final AtomicLong successes = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  protected DNSUpstream(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Resolve the domain, calling back exactly once on any thread once done,
+   * see {@link DNSBlockingUpstream} for upstreams with a blocking lookup
+   */
+  public abstract void resolve(String domain, Executor executor, Callback callback);
+
+  /** @return false if the answers may be forged on the way */
+  public boolean isTrusted() {
+    return true;
+  }
+
+  public long getLatency() {
+    return latency;
+  }
+
+  public long getSuccesses() {
+    return successes.get();
+  }
+
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /** Fold a lookup into the average, weighing the new sample by 1/4 */
+  public synchronized void recordLatency(long elapsed, boolean success) {
+    if (success) {
+      successes.incrementAndGet();
+    } else {
+      failures.incrementAndGet();
+      elapsed = Math.max(elapsed, FAILURE_LATENCY);
+    }
+    latency = latency == 0 ? elapsed : (latency * 3 + elapsed) / 4;
+  }
+
+  @Override
+  public String toString() {
+    return name + " (" + latency + "ms)";
+  }
+
+  /** @return an A query for the domain */
+  protected static Message newQuery(String domain) throws IOException {
+    return newQuery(domain, Type.A);
+  }
+
+  /** @return a query of the type for the domain, like {@link Type#AAAA} */
+  protected static Message newQuery(String domain, int type) throws IOException {
+    Record question = Record.newRecord(Name.fromString(domain, Name.root), type, DClass.IN);
+    return Message.newQuery(question);
+  }
+
+  /**
+   * Join the addresses of two answers for the same domain, like the A and
+   * the AAAA ones, keeping the shortest TTL.
+   *
+   * @return the answer with the addresses of both, or the one that has any
+   */
+  protected static String merge(String first, String second) {
+    if (first == null || first.equals(CANT_RESOLVE)) return second != null ? second : first;
+    if (second == null || second.equals(CANT_RESOLVE)) return first;
+    int ttl = getTtl(first);
+    int other = getTtl(second);
+    if (ttl == NO_TTL || other != NO_TTL && other < ttl) ttl = other;
+    String addrs = getAddresses(first) + "|" + getAddresses(second);
+    return ttl == NO_TTL ? addrs : addrs + ";" + ttl;
+  }
+
+  /** @return the answer of a response in the relay format, or null */
+  protected static String toAnswer(Message response) {
+    if (response == null) return null;
+    if (response.getRcode() == Rcode.NXDOMAIN) return CANT_RESOLVE;
+    if (response.getRcode() != Rcode.NOERROR) return null;
+    StringBuilder sb = new StringBuilder();
+    long ttl = Long.MAX_VALUE;
+    for (Record record : response.getSectionArray(Section.ANSWER)) {
+      String addr = null;
+      if (record instanceof ARecord) {
+        addr = ((ARecord) record).getAddress().getHostAddress();
+      } else if (record instanceof AAAARecord) {
+        addr = ((AAAARecord) record).getAddress().getHostAddress();
+      }
+      if (addr == null) continue;
+      if (sb.length() > 0) sb.append('|');
+      sb.append(addr);
+      ttl = Math.min(ttl, record.getTTL());
+    }
+    if (sb.length() == 0) return null;
+    return sb.append(';').append(ttl).toString();
+  }
+
+  /** @return the TTL of an answer, or {@link #NO_TTL} */
+  public static int getTtl(String answer) {
+    int semicolon = answer == null ? -1 : answer.lastIndexOf(';');
+    if (semicolon < 0) return NO_TTL;
+    try {
+      long ttl = Long.parseLong(answer.substring(semicolon + 1).trim());
+      return ttl < 0 ? NO_TTL : (int) Math.min(ttl, Integer.MAX_VALUE);
+    } catch (NumberFormatException e) {
+      return NO_TTL;
+    }
+  }
+
+  /** @return the answer without its TTL */
+  public static String getAddresses(String answer) {
+    int semicolon = answer == null ? -1 : answer.lastIndexOf(';');
+    return semicolon < 0 ? answer : answer.substring(0, semicolon).trim();
+  }
+
+  /** @return true if the text has the format of an answer */
+  public static boolean isAnswer(String answer) {
+    if (answer == null) return false;
+    if (answer.equals(CANT_RESOLVE)) return true;
+    int semicolon = answer.lastIndexOf(';');
+    if (semicolon >= 0 && getTtl(answer) == NO_TTL) return false;
+    return getAddresses(answer).matches("[0-9a-fA-F.:]+(\\|[0-9a-fA-F.:]+)*");
+  }
+
+  /**
+   * Parse the answer of a batched relay lookup, one "domain answer" per line.
+   * Anything else, like an error page served with a 2xx status, means the
+   * relay did not understand the request.
+   *
+   * @param names the names asked for, lower cased
+   * @return answers by domain, or null if a line is not an answer to one of
+   * the names
+   */
+  public static HashMap<String, String> parseBatchAnswers(String response,
+      Collection<String> names) {
+    if (response == null) return null;
+    HashSet<String> asked = new HashSet<String>(names);
+    HashMap<String, String> answers = new HashMap<String, String>();
+    for (String line : response.split("\n")) {
+      line = line.trim();
+      if (line.length() == 0) continue;
+      int space = line.indexOf(' ');
+      if (space <= 0) return null;
+      String domain = line.substring(0, space).toLowerCase();
+      String answer = line.substring(space + 1).trim();
+      if (!asked.contains(domain) || !isAnswer(answer)) return null;
+      answers.put(domain, answer);
+    }
+    return answers.isEmpty() ? null : answers;
+  }
+}
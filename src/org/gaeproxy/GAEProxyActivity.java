@@ -80,11 +80,15 @@ import com.google.analytics.tracking.android.EasyTracker;
 import com.j256.ormlite.android.apptools.OpenHelperManager;
 import de.keyboardsurfer.android.widget.crouton.Crouton;
 import de.keyboardsurfer.android.widget.crouton.Style;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import org.gaeproxy.db.DatabaseHelper;
 
 public class GAEProxyActivity extends PreferenceActivity
@@ -123,7 +127,9 @@ public class GAEProxyActivity extends PreferenceActivity
   private EditTextPreference portText;
   private EditTextPreference sitekeyText;
   private ListPreference proxyTypeList;
+  private ListPreference dnsWorkersList;
   private CheckBoxPreference isHTTPSProxyCheck;
+  private CheckBoxPreference isDirectDNSCheck;
   private CheckBoxPreference isGFWListCheck;
   private CheckBoxPreference isRunningCheck;
   private Preference proxiedApps;
@@ -168,7 +174,7 @@ public class GAEProxyActivity extends PreferenceActivity
 
   private void crash_recovery() {
 
-    Utils.runRootCommand(Utils.getIptables() + " -t nat -F OUTPUT");
+    Utils.runRootCommand(IptablesChains.teardown(Utils.getIptables()));
 
     Utils.runCommand(GAEProxyService.BASE + "proxy.sh stop");
   }
@@ -181,18 +187,17 @@ public class GAEProxyActivity extends PreferenceActivity
     }
   }
 
+  /** Disable the settings that need a restart, the routing rules and apps are updated live */
   private void disableAll() {
     proxyText.setEnabled(false);
     portText.setEnabled(false);
     sitekeyText.setEnabled(false);
-    proxiedApps.setEnabled(false);
-    isGFWListCheck.setEnabled(false);
-    isBypassAppsCheck.setEnabled(false);
 
     isAutoConnectCheck.setEnabled(false);
-    isGlobalProxyCheck.setEnabled(false);
     isHTTPSProxyCheck.setEnabled(false);
     proxyTypeList.setEnabled(false);
+    dnsWorkersList.setEnabled(false);
+    isDirectDNSCheck.setEnabled(false);
   }
 
   private void enableAll() {
@@ -209,6 +214,8 @@ public class GAEProxyActivity extends PreferenceActivity
 
     isAutoConnectCheck.setEnabled(true);
     proxyTypeList.setEnabled(true);
+    dnsWorkersList.setEnabled(true);
+    isDirectDNSCheck.setEnabled(true);
   }
 
   private boolean install() {
@@ -272,8 +279,10 @@ public class GAEProxyActivity extends PreferenceActivity
     isGlobalProxyCheck = (CheckBoxPreference) findPreference("isGlobalProxy");
     isGFWListCheck = (CheckBoxPreference) findPreference("isGFWList");
     isBypassAppsCheck = (CheckBoxPreference) findPreference("isBypassApps");
+    isDirectDNSCheck = (CheckBoxPreference) findPreference("isDirectDNS");
 
     proxyTypeList = (ListPreference) findPreference("proxyType");
+    dnsWorkersList = (ListPreference) findPreference("dnsWorkers");
 
     if (sProgressDialog == null) {
       sProgressDialog = ProgressDialog.show(this, "", getString(R.string.initializing), true, true);
@@ -330,6 +339,8 @@ public class GAEProxyActivity extends PreferenceActivity
         .setIcon(android.R.drawable.ic_menu_delete);
     menu.add(Menu.NONE, Menu.FIRST + 2, 2, getString(R.string.about))
         .setIcon(android.R.drawable.ic_menu_info_details);
+    menu.add(Menu.NONE, Menu.FIRST + 3, 3, getString(R.string.dns_stats))
+        .setIcon(android.R.drawable.ic_menu_info_details);
     // return true才会起作用
     return true;
   }
@@ -383,6 +394,9 @@ public class GAEProxyActivity extends PreferenceActivity
         }
         showAbout();
         break;
+      case Menu.FIRST + 3:
+        showStats();
+        break;
     }
 
     return true;
@@ -629,7 +643,7 @@ public class GAEProxyActivity extends PreferenceActivity
       @Override
       public void run() {
 
-        Utils.runRootCommand(Utils.getIptables() + " -t nat -F OUTPUT");
+        Utils.runRootCommand(IptablesChains.teardown(Utils.getIptables()));
         Utils.runCommand(GAEProxyService.BASE + "proxy.sh stop");
 
         File f = new File("/data/data/org.gaeproxy/certs");
@@ -757,6 +771,43 @@ public class GAEProxyActivity extends PreferenceActivity
         }).setView(web).create().show();
   }
 
+  /** Show the counters of the DNS proxy, read from its local endpoint */
+  private void showStats() {
+    final Handler h = new Handler() {
+      @Override
+      public void handleMessage(Message msg) {
+        if (msg.obj == null) {
+          showADialog(getString(R.string.dns_stats_unavailable));
+        } else {
+          showADialog(((String) msg.obj).replace(' ', '\n'));
+        }
+      }
+    };
+
+    new Thread() {
+      @Override
+      public void run() {
+        String stats = null;
+        Socket socket = new Socket();
+        try {
+          socket.connect(new InetSocketAddress("127.0.0.1", DNSServer.REVERSE_PORT), 1000);
+          socket.setSoTimeout(3000);
+          socket.getOutputStream().write("stats\r\n".getBytes());
+          stats = new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+        } catch (IOException e) {
+          Log.d(TAG, "DNS proxy not running", e);
+        } finally {
+          try {
+            socket.close();
+          } catch (IOException ignored) {
+            // Nothing
+          }
+        }
+        h.sendMessage(h.obtainMessage(0, stats));
+      }
+    }.start();
+  }
+
   private void showADialog(String msg) {
     AlertDialog.Builder builder = new AlertDialog.Builder(this);
     builder.setMessage(msg)
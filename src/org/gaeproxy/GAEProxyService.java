@@ -48,6 +48,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.net.Uri;
@@ -61,13 +62,18 @@ import android.util.Pair;
 import android.widget.RemoteViews;
 import com.google.analytics.tracking.android.EasyTracker;
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import org.apache.commons.codec.binary.Base64;
@@ -87,33 +93,27 @@ import org.xbill.DNS.Type;
 public class GAEProxyService extends Service {
 
   public static final String BASE = "/data/data/org.gaeproxy/";
-  final static String CMD_IPTABLES_RETURN = " -t nat -A OUTPUT -p tcp -d 0.0.0.0 -j RETURN\n";
-  final static String CMD_IPTABLES_REDIRECT_ADD_HTTP =
-      " -t nat -A OUTPUT -p tcp " + "--dport 80 -j REDIRECT --to 8123\n";
-  final static String CMD_IPTABLES_REDIRECT_ADD_HTTPS =
-      " -t nat -A OUTPUT -p tcp " + "--dport 443 -j REDIRECT --to 8124\n";
-  final static String CMD_IPTABLES_DNAT_ADD_HTTP =
-      " -t nat -A OUTPUT -p tcp " + "--dport 80 -j DNAT --to-destination 127.0.0.1:8123\n";
-  final static String CMD_IPTABLES_DNAT_ADD_HTTPS =
-      " -t nat -A OUTPUT -p tcp " + "--dport 443 -j DNAT --to-destination 127.0.0.1:8124\n";
+  /** Sent to the running service when the proxied apps change */
+  public static final String ACTION_UPDATE_APPS = "org.gaeproxy.GAEProxyService.UPDATE_APPS";
+  /** Rules of the service chains, see {@link IptablesChains} */
+  final static String RULE_BYPASS = "-p tcp -d 0.0.0.0 -j ACCEPT";
+  final static String RULE_REDIRECT_ADD_HTTP = "-p tcp --dport 80 -j REDIRECT --to 8123";
+  final static String RULE_REDIRECT_ADD_HTTPS = "-p tcp --dport 443 -j REDIRECT --to 8124";
+  final static String RULE_DNAT_ADD_HTTP =
+      "-p tcp --dport 80 -j DNAT --to-destination 127.0.0.1:8123";
+  final static String RULE_DNAT_ADD_HTTPS =
+      "-p tcp --dport 443 -j DNAT --to-destination 127.0.0.1:8124";
   private static final int MSG_CONNECT_START = 0;
   private static final int MSG_CONNECT_FINISH = 1;
   private static final int MSG_CONNECT_SUCCESS = 2;
   private static final int MSG_CONNECT_FAIL = 3;
   private static final int MSG_HOST_CHANGE = 4;
   private static final int MSG_STOP_SELF = 5;
-  private static final String[] BLACK_LIST = {
-      "4.36.66.178", "8.7.198.45", "37.61.54.158", "46.82.174.68", "59.24.3.173", "64.33.88.161",
-      "64.33.99.47", "64.66.163.251", "65.104.202.252", "65.160.219.113", "66.45.252.237",
-      "72.14.205.104", "72.14.205.99", "78.16.49.15", "93.46.8.89", "128.121.126.139",
-      "159.106.121.75", "169.132.13.103", "192.67.198.6", "202.106.1.2", "202.181.7.85",
-      "203.161.230.171", "207.12.88.98", "208.56.31.43", "209.145.54.50", "209.220.30.174",
-      "209.36.73.33", "211.94.66.147", "213.169.251.35", "216.221.188.182", "216.234.179.13",
-      "59.24.3.173"
-  };
   private static final String TAG = "GAEProxyService";
   private static final String DEFAULT_HOST = "74.125.128.18";
   private static final String DEFAULT_DNS = "50.17.31.189";
+  /** Public resolvers of the optional upstreams of the DNS proxy */
+  private static final String DIRECT_DNS = "114.114.114.114";
   private static final Class<?>[] mStartForegroundSignature = new Class[] {
       int.class, Notification.class
   };
@@ -177,6 +177,7 @@ public class GAEProxyService extends Service {
   private String dnsHost = null;
   private DNSServer dnsServer = null;
   private int dnsPort = 8053;
+  private int dnsWorkers = DNSServer.DEFAULT_WORKERS;
   private String proxyType = "GAE";
   private String appId;
   private String appPath;
@@ -185,6 +186,24 @@ public class GAEProxyService extends Service {
   private int port;
   private String sitekey;
   private SharedPreferences settings = null;
+  private final IptablesChains chains = new IptablesChains(new File(BASE + "iptables.rules"));
+  /** Applies the edited settings while running, kept here as prefs only hold it weakly */
+  private final OnSharedPreferenceChangeListener settingsListener =
+      new OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+          DNSServer server = dnsServer;
+          if ("dnsHosts".equals(key) && server != null) {
+            server.setHosts(prefs.getString(key, ""));
+          } else if (("dnsMinTtl".equals(key) || "dnsMaxTtl".equals(key)
+              || "isServeStale".equals(key)) && server != null) {
+            applyCacheSettings(server, prefs);
+          } else if ("isGlobalProxy".equals(key) || "isBypassApps".equals(key)
+              || "isGFWList".equals(key)) {
+            updateRules();
+          }
+        }
+      };
   private boolean hasRedirectSupport = true;
   private boolean isGlobalProxy = false;
   private boolean isHTTPSProxy = false;
@@ -198,6 +217,20 @@ public class GAEProxyService extends Service {
   private Object[] mStartForegroundArgs = new Object[2];
   private Object[] mStopForegroundArgs = new Object[1];
 
+  /** Apply the TTL bounds and serve stale, read again whenever they change */
+  private static void applyCacheSettings(DNSServer server, SharedPreferences prefs) {
+    try {
+      server.setTtlBounds(
+          Integer.valueOf(prefs.getString("dnsMinTtl",
+              String.valueOf(DNSServer.DEFAULT_MIN_TTL))),
+          Integer.valueOf(prefs.getString("dnsMaxTtl",
+              String.valueOf(DNSServer.DEFAULT_MAX_TTL))));
+    } catch (NumberFormatException ex) {
+      server.setTtlBounds(DNSServer.DEFAULT_MIN_TTL, DNSServer.DEFAULT_MAX_TTL);
+    }
+    server.setServeStale(prefs.getBoolean("isServeStale", false));
+  }
+
   public static boolean isServiceStarted() {
     final boolean isServiceStarted;
     if (sRunningInstance == null) {
@@ -211,11 +244,12 @@ public class GAEProxyService extends Service {
     return isServiceStarted;
   }
 
-  private static boolean isInBlackList(String addr) {
-    for (String a : BLACK_LIST) {
-      if (a.endsWith(addr)) return true;
-    }
-    return false;
+  /** Have the running service apply the proxied apps as stored, does nothing if it is stopped */
+  public static void notifyAppsChanged(Context context) {
+    if (!isServiceStarted()) return;
+    Intent intent = new Intent(context, GAEProxyService.class);
+    intent.setAction(ACTION_UPDATE_APPS);
+    context.startService(intent);
   }
 
   private boolean parseProxyURL(String url) {
@@ -288,6 +322,17 @@ public class GAEProxyService extends Service {
       return;
     }
 
+    if (ACTION_UPDATE_APPS.equals(intent.getAction())) {
+      // only the redirects of the apps that changed, the proxy keeps running
+      if (isServiceStarted()) {
+        updateRules();
+      } else {
+        // stopped since the intent was sent
+        stopSelf();
+      }
+      return;
+    }
+
     proxyType = settings.getString("proxyType", "GAE");
     sitekey = settings.getString("sitekey", "");
     try {
@@ -295,6 +340,12 @@ public class GAEProxyService extends Service {
     } catch (NumberFormatException ex) {
       port = 1984;
     }
+    try {
+      dnsWorkers = Integer.valueOf(settings.getString("dnsWorkers",
+          String.valueOf(DNSServer.DEFAULT_WORKERS)));
+    } catch (NumberFormatException ex) {
+      dnsWorkers = DNSServer.DEFAULT_WORKERS;
+    }
 
     isGlobalProxy = settings.getBoolean("isGlobalProxy", false);
     isHTTPSProxy = settings.getBoolean("isHTTPSProxy", false);
@@ -361,7 +412,7 @@ public class GAEProxyService extends Service {
     if (isSafe) {
       try {
         Lookup lookup = new Lookup(host, Type.A);
-        Resolver resolver = new SimpleResolver("114.114.114.114");
+        Resolver resolver = new SimpleResolver(DIRECT_DNS);
         resolver.setTCP(false);
         resolver.setTimeout(10);
         lookup.setResolver(resolver);
@@ -401,20 +452,22 @@ public class GAEProxyService extends Service {
   /** Called when the activity is first created. */
   public boolean handleConnection() {
 
+    DNSBlackList.load(this);
+
     if (proxyType.equals("GAE")) {
       appHost = parseHost("g.maxcdn.info", true);
-      if (appHost == null || appHost.equals("") || isInBlackList(appHost)) {
+      if (appHost == null || appHost.equals("") || DNSBlackList.isPoisoned(appHost)) {
         appHost = DEFAULT_HOST;
       }
     } else if (proxyType.equals("PaaS")) {
       appHost = parseHost(appId, false);
-      if (appHost == null || appHost.equals("") || isInBlackList(appHost)) {
+      if (appHost == null || appHost.equals("") || DNSBlackList.isPoisoned(appHost)) {
         return false;
       }
     }
 
     dnsHost = parseHost("myhosts.sinaapp.com", false);
-    if (dnsHost == null || dnsHost.equals("") || isInBlackList(appHost)) {
+    if (dnsHost == null || dnsHost.equals("") || DNSBlackList.isPoisoned(dnsHost)) {
       dnsHost = DEFAULT_DNS;
     }
 
@@ -436,9 +489,20 @@ public class GAEProxyService extends Service {
     // with AsyncHttpClient
     if ("PaaS".equals(proxyType)) {
       Pair<String, String> orgHost = new Pair<String, String>(appId, appMask[0]);
-      dnsServer = new DNSServer(this, dnsHost, orgHost);
+      dnsServer = new DNSServer(this, dnsHost, orgHost, dnsWorkers);
     } else if ("GAE".equals(proxyType)) {
-      dnsServer = new DNSServer(this, dnsHost, null);
+      dnsServer = new DNSServer(this, dnsHost, null, dnsWorkers);
+    }
+    dnsServer.setPersistNegative(settings.getBoolean("isPersistNegative", false));
+    dnsServer.setHosts(settings.getString("dnsHosts", ""));
+    applyCacheSettings(dnsServer, settings);
+    settings.registerOnSharedPreferenceChangeListener(settingsListener);
+    if (settings.getBoolean("isDirectDNS", false)) {
+      try {
+        dnsServer.addUpstream(new DNSUdpUpstream(DIRECT_DNS));
+      } catch (IOException e) {
+        Log.e(TAG, "Cannot use " + DIRECT_DNS, e);
+      }
     }
     dnsPort = dnsServer.getServPort();
 
@@ -554,6 +618,7 @@ public class GAEProxyService extends Service {
     notifyAlert(getString(R.string.forward_stop), getString(R.string.service_stopped),
         Notification.FLAG_AUTO_CANCEL);
 
+    if (settings != null) settings.unregisterOnSharedPreferenceChangeListener(settingsListener);
     try {
       if (dnsServer != null) dnsServer.close();
     } catch (Exception e) {
@@ -605,7 +670,10 @@ public class GAEProxyService extends Service {
   }
 
   private void onDisconnect() {
-    Utils.runRootCommand(Utils.getIptables() + " -t nat -F OUTPUT");
+    synchronized (this) {
+      Utils.runRootCommand(IptablesChains.teardown(Utils.getIptables()));
+      chains.reset();
+    }
     if (Utils.isRoot()) {
       Utils.runRootCommand(BASE + "proxy.sh stop");
     } else {
@@ -696,81 +764,86 @@ public class GAEProxyService extends Service {
       }
     }
 
-    StringBuilder init_sb = new StringBuilder();
-
-    StringBuilder http_sb = new StringBuilder();
+    chains.install(buildRules());
 
-    StringBuilder https_sb = new StringBuilder();
-
-    init_sb.append(Utils.getIptables()).append(" -t nat -F OUTPUT\n");
+    return true;
+  }
 
-    if (hasRedirectSupport) {
-      init_sb.append(Utils.getIptables())
-          .append(" -t nat -A OUTPUT -p udp --dport 53 -j REDIRECT --to ")
-          .append(dnsPort)
-          .append("\n");
-    } else {
-      init_sb.append(Utils.getIptables())
-          .append(" -t nat -A OUTPUT -p udp --dport 53 -j DNAT --to-destination 127.0.0.1:")
-          .append(dnsPort)
-          .append("\n");
+  /** @return the rules of each service chain for the current settings */
+  private Map<String, List<String>> buildRules() {
+    List<String> dns = new ArrayList<String>();
+    List<String> bypass = new ArrayList<String>();
+    List<String> redirects = new ArrayList<String>();
+    int self = getApplicationInfo().uid;
+
+    // DNS over TCP only if the local server listens for it as well
+    String[] dnsProtocols =
+        dnsServer.isTcpEnabled() ? new String[] { "udp", "tcp" } : new String[] { "udp" };
+    for (String protocol : dnsProtocols) {
+      // the upstreams of the DNS proxy must not loop back into it
+      dns.add("-p " + protocol + " --dport 53 -m owner --uid-owner " + self + " -j ACCEPT");
+      if (hasRedirectSupport) {
+        dns.add("-p " + protocol + " --dport 53 -j REDIRECT --to " + dnsPort);
+      } else {
+        dns.add("-p " + protocol + " --dport 53 -j DNAT --to-destination 127.0.0.1:" + dnsPort);
+      }
     }
 
-    String cmd_bypass = Utils.getIptables() + CMD_IPTABLES_RETURN;
-
-    init_sb.append(cmd_bypass.replace("0.0.0.0", dnsHost));
-
+    bypass.add(RULE_BYPASS.replace("0.0.0.0", dnsHost));
     for (String mask : appMask) {
-      init_sb.append(cmd_bypass.replace("0.0.0.0", mask));
+      bypass.add(RULE_BYPASS.replace("0.0.0.0", mask));
     }
-
-    init_sb.append(
-        cmd_bypass.replace("-d 0.0.0.0", "-m owner --uid-owner " + getApplicationInfo().uid));
+    bypass.add(RULE_BYPASS.replace("-d 0.0.0.0", "-m owner --uid-owner " + self));
 
     if (isGFWList) {
       String[] chn_list = getResources().getStringArray(R.array.chn_list);
-
-      for (String item : chn_list) {
-        init_sb.append(cmd_bypass.replace("0.0.0.0", item));
-      }
+      bypass.addAll(ChnRanges.rules(chn_list, new File(BASE + "chn.ipset")));
     }
+
+    String rule_http = hasRedirectSupport ? RULE_REDIRECT_ADD_HTTP : RULE_DNAT_ADD_HTTP;
+    String rule_https = hasRedirectSupport ? RULE_REDIRECT_ADD_HTTPS : RULE_DNAT_ADD_HTTPS;
     if (isGlobalProxy || isBypassApps) {
-      http_sb.append(hasRedirectSupport ? Utils.getIptables() + CMD_IPTABLES_REDIRECT_ADD_HTTP
-          : Utils.getIptables() + CMD_IPTABLES_DNAT_ADD_HTTP);
-      https_sb.append(hasRedirectSupport ? Utils.getIptables() + CMD_IPTABLES_REDIRECT_ADD_HTTPS
-          : Utils.getIptables() + CMD_IPTABLES_DNAT_ADD_HTTPS);
+      redirects.add(rule_http);
+      redirects.add(rule_https);
     }
     if (!isGlobalProxy) {
       // for proxy specified apps
 
       if (mProxiedApps != null) {
         for (int uid : mProxiedApps) {
+          String owner = "-m owner --uid-owner " + uid + " ";
           if (!isBypassApps) {
-            http_sb.append(
-                (hasRedirectSupport ? Utils.getIptables() + CMD_IPTABLES_REDIRECT_ADD_HTTP
-                    : Utils.getIptables() + CMD_IPTABLES_DNAT_ADD_HTTP).replace("-t nat",
-                    "-t nat -m owner --uid-owner " + uid));
-            https_sb.append(
-                (hasRedirectSupport ? Utils.getIptables() + CMD_IPTABLES_REDIRECT_ADD_HTTPS
-                    : Utils.getIptables() + CMD_IPTABLES_DNAT_ADD_HTTPS).replace("-t nat",
-                    "-t nat -m owner --uid-owner " + uid));
+            redirects.add(owner + rule_http);
+            redirects.add(owner + rule_https);
           } else {
-            init_sb.append(cmd_bypass.replace("-d 0.0.0.0", "-m owner --uid-owner " + uid));
+            bypass.add(RULE_BYPASS.replace("-d 0.0.0.0", owner.trim()));
           }
         }
       }
     }
 
-    String init_rules = init_sb.toString();
-    Utils.runRootCommand(init_rules, 30 * 1000);
-
-    String redt_rules = http_sb.toString();
-
-    redt_rules += https_sb.toString();
-
-    Utils.runRootCommand(redt_rules);
+    Map<String, List<String>> rules = new HashMap<String, List<String>>();
+    rules.put(IptablesChains.DNS, dns);
+    rules.put(IptablesChains.BYPASS, bypass);
+    rules.put(IptablesChains.REDIRECT, redirects);
+    return rules;
+  }
 
-    return true;
+  /** Re-read the proxy modes and apps, and apply the rules that changed, off the caller's thread */
+  private void updateRules() {
+    new Thread() {
+      @Override
+      public void run() {
+        synchronized (GAEProxyService.this) {
+          if (dnsServer == null) return;
+          isGlobalProxy = settings.getBoolean("isGlobalProxy", false);
+          isGFWList = settings.getBoolean("isGFWList", false);
+          isBypassApps = settings.getBoolean("isBypassApps", false);
+          if (!isGlobalProxy) mProxiedApps = App.getProxiedApps(GAEProxyService.this);
+          chains.update(buildRules());
+        }
+      }
+    }.start();
   }
 
   /**
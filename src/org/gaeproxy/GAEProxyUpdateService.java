@@ -54,12 +54,10 @@ public class GAEProxyUpdateService extends IntentService {
   @Override protected void onHandleIntent(Intent intent) {
     SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
 
-    if (GAEProxyService.isServiceStarted()) {
-      settings.edit().putBoolean("packageChanged", true).commit();
-    } else {
-      Set<Integer> appSet = App.getProxiedApps(this);
-      App.updateApps(this, appSet);
-      settings.edit().putBoolean("packageChanged", false).commit();
-    }
+    // refresh the uids now, the running service applies their redirects
+    Set<Integer> appSet = App.getProxiedApps(this);
+    App.updateApps(this, appSet);
+    settings.edit().putBoolean("packageChanged", false).commit();
+    GAEProxyService.notifyAppsChanged(this);
   }
 }
\ No newline at end of file
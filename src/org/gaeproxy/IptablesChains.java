@@ -0,0 +1,129 @@
+package org.gaeproxy;
+
+import android.util.Log;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The nat chains owned by the service, jumped to from the top of OUTPUT so
+ * that the rules of other tools are left alone. The rules last applied are
+ * remembered, and an update only deletes and appends the ones that changed,
+ * leaving the connections going through the others untouched.
+ *
+ * A packet goes through the DNS redirects, then the bypasses, then the
+ * redirects to the local proxy. The bypasses ACCEPT rather than RETURN,
+ * which ends the nat traversal like a RETURN from OUTPUT did.
+ */
+public class IptablesChains {
+
+  private static final String TAG = "GAEProxy";
+
+  public static final String DNS = "GAEPROXY_DNS";
+  public static final String BYPASS = "GAEPROXY_BYPASS";
+  public static final String REDIRECT = "GAEPROXY_REDIRECT";
+  private static final String[] CHAINS = { DNS, BYPASS, REDIRECT };
+
+  private final File payload;
+
+  /** Rules of each chain as applied, without "-A chain", empty until installed */
+  private final HashMap<String, List<String>> live = new HashMap<String, List<String>>();
+
+  /** @param payload where to write the payloads for iptables-restore */
+  public IptablesChains(File payload) {
+    this.payload = payload;
+  }
+
+  /** Create the chains with the given rules, replacing any left over */
+  public synchronized void install(Map<String, List<String>> rules) {
+    // the jumps may be there from an earlier run, drop them before adding them again
+    Utils.runRootCommand(jumps(Utils.getIptables(), "-D"));
+
+    IptablesRules batch = new IptablesRules();
+    for (String chain : CHAINS) {
+      batch.declare(chain);
+    }
+    live.clear();
+    for (String chain : CHAINS) {
+      List<String> chainRules = distinct(rules.get(chain));
+      for (String rule : chainRules) {
+        batch.add("-A " + chain + " " + rule);
+      }
+      live.put(chain, chainRules);
+    }
+    for (int i = 0; i < CHAINS.length; i++) {
+      batch.add("-I OUTPUT " + (i + 1) + " -j " + CHAINS[i]);
+    }
+    batch.apply(payload);
+  }
+
+  /** Apply the rules that changed since the last install, nothing before it or after a reset */
+  public synchronized void update(Map<String, List<String>> rules) {
+    if (live.isEmpty()) return;
+    IptablesRules batch = new IptablesRules();
+    int changes = 0;
+    for (String chain : CHAINS) {
+      List<String> wanted = distinct(rules.get(chain));
+      List<String> current = live.get(chain);
+      if (wanted.equals(current)) continue;
+      if (DNS.equals(chain)) {
+        // order matters there, and it is only a few rules
+        batch.add("-F " + chain);
+        for (String rule : wanted) {
+          batch.add("-A " + chain + " " + rule);
+        }
+        changes += current.size() + wanted.size();
+      } else {
+        LinkedHashSet<String> removed = new LinkedHashSet<String>(current);
+        removed.removeAll(wanted);
+        LinkedHashSet<String> added = new LinkedHashSet<String>(wanted);
+        added.removeAll(current);
+        for (String rule : removed) {
+          batch.add("-D " + chain + " " + rule);
+        }
+        for (String rule : added) {
+          batch.add("-A " + chain + " " + rule);
+        }
+        changes += removed.size() + added.size();
+      }
+      live.put(chain, wanted);
+    }
+    if (batch.isEmpty()) return;
+    Log.d(TAG, "Updating " + changes + " rules");
+    batch.apply(payload);
+  }
+
+  /** Forget the chains, once they are removed with {@link #teardown} */
+  public synchronized void reset() {
+    live.clear();
+  }
+
+  /** @return the commands removing the chains, each may fail if they are not there */
+  public static String teardown(String iptables) {
+    StringBuilder sb = new StringBuilder(jumps(iptables, "-D"));
+    for (String chain : CHAINS) {
+      sb.append(iptables).append(" -t nat -F ").append(chain).append('\n');
+      sb.append(iptables).append(" -t nat -X ").append(chain).append('\n');
+    }
+    // once no rule matches on it
+    sb.append(ChnRanges.teardown());
+    return sb.toString();
+  }
+
+  private static String jumps(String iptables, String action) {
+    StringBuilder sb = new StringBuilder();
+    for (String chain : CHAINS) {
+      sb.append(iptables).append(" -t nat ").append(action).append(" OUTPUT -j ").append(chain)
+          .append('\n');
+    }
+    return sb.toString();
+  }
+
+  private static List<String> distinct(List<String> rules) {
+    if (rules == null) return new ArrayList<String>();
+    return new ArrayList<String>(new LinkedHashSet<String>(rules));
+  }
+}
@@ -0,0 +1,111 @@
+package org.gaeproxy;
+
+import android.util.Log;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rules of the nat table, compiled into one iptables-restore payload so that
+ * they are applied by a single process taking the xtables lock once. Devices
+ * without iptables-restore, or where it fails, get one iptables command per
+ * rule instead.
+ */
+public class IptablesRules {
+
+  private static final String TAG = "GAEProxy";
+
+  private static final int TIMEOUT = 30 * 1000;
+
+  /** Chains created, or flushed if they exist, before the rules */
+  private final List<String> chains = new ArrayList<String>();
+  /** Rules without the iptables binary and table, like "-A OUTPUT -j RETURN" */
+  private final List<String> rules = new ArrayList<String>();
+
+  /** Create the chain, or flush it if it exists */
+  public IptablesRules declare(String chain) {
+    chains.add(chain);
+    return this;
+  }
+
+  public IptablesRules add(String rule) {
+    rules.add(rule.trim());
+    return this;
+  }
+
+  public boolean isEmpty() {
+    return chains.isEmpty() && rules.isEmpty();
+  }
+
+  /** @return the payload for "iptables-restore --noflush" */
+  public String toRestore() {
+    StringBuilder sb = new StringBuilder("*nat\n");
+    for (String chain : chains) {
+      sb.append(':').append(chain).append(" - [0:0]\n");
+    }
+    for (String rule : rules) {
+      sb.append(rule).append('\n');
+    }
+    return sb.append("COMMIT\n").toString();
+  }
+
+  /** @return one iptables command per rule */
+  public String toCommands(String iptables) {
+    StringBuilder sb = new StringBuilder();
+    for (String chain : chains) {
+      // -N fails on an existing chain, the script goes on
+      sb.append(iptables).append(" -t nat -N ").append(chain).append('\n');
+      sb.append(iptables).append(" -t nat -F ").append(chain).append('\n');
+    }
+    for (String rule : rules) {
+      sb.append(iptables).append(" -t nat ").append(rule).append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Apply the rules as root, all at once if iptables-restore is there
+   *
+   * @param payload where to write the payload for iptables-restore
+   */
+  public void apply(File payload) {
+    long start = System.currentTimeMillis();
+    String restore = Utils.getIptablesRestore();
+    if (restore != null && write(payload)) {
+      int exitcode = Utils.runRootScript(restore + " --noflush < " + payload.getPath(), TIMEOUT);
+      payload.delete();
+      if (exitcode == 0) {
+        Log.d(TAG, "Applied " + rules.size() + " rules with iptables-restore in "
+            + (System.currentTimeMillis() - start) + "ms");
+        return;
+      }
+      // nothing is committed when a line fails
+      Log.w(TAG, "iptables-restore failed with " + exitcode + ", applying rules one by one");
+    }
+    Utils.runRootCommand(toCommands(Utils.getIptables()), TIMEOUT);
+    Log.d(TAG, "Applied " + rules.size() + " rules with iptables in "
+        + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  private boolean write(File file) {
+    FileWriter out = null;
+    try {
+      out = new FileWriter(file);
+      out.write(toRestore());
+      return true;
+    } catch (IOException e) {
+      Log.e(TAG, "Cannot write " + file, e);
+      return false;
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException ignored) {
+          // Nothing
+        }
+      }
+    }
+  }
+}
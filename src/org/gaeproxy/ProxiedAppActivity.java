@@ -214,6 +214,7 @@ public class ProxiedAppActivity extends Activity implements OnCheckedChangeListe
         public void run() {
           if (mAppList == null) return;
           App.forceToUpdateApp(getApplicationContext(), app);
+          GAEProxyService.notifyAppsChanged(getApplicationContext());
         }
       });
     }
@@ -0,0 +1,241 @@
+package org.gaeproxy;
+
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-lived root shell running the scripts one after the other, so that
+ * su is spawned once rather than per command. Each script runs in a
+ * subshell writing to a file of its own, which is printed and removed once
+ * it exits, followed by an echo of a sentinel carrying its exit code. A
+ * daemon started by a script thus keeps the removed file rather than the
+ * pipe of the shell, and cannot mix into the output of later scripts nor
+ * block once the pipe is full. A script running past its timeout gets the
+ * shell killed, and the next script spawns a new one, as does an idle or
+ * dead shell.
+ */
+public class RootShell {
+
+  private static final String TAG = "GAEProxy";
+
+  /** Closed after this long without a script */
+  private static final long IDLE_TIMEOUT = 60 * 1000;
+  private static final String FILE_PREFIX = ".root_shell_";
+
+  /** A submitted script, done once its exit code is known */
+  public static class Command {
+    private final String script;
+    private final StringBuilder output;
+    private final long timeout;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile int exitcode = -1;
+
+    Command(String script, StringBuilder output, long timeout) {
+      this.script = script;
+      this.output = output;
+      this.timeout = timeout;
+    }
+
+    /** @return the exit code, -1 if the shell failed, or {@link Utils#TIME_OUT} */
+    public int waitFor() {
+      try {
+        done.await();
+      } catch (InterruptedException e) {
+        return Utils.TIME_OUT;
+      }
+      return exitcode;
+    }
+
+    public boolean isDone() {
+      return done.getCount() == 0;
+    }
+
+    /** The first result wins, a timeout is not overwritten by the failure it causes */
+    synchronized void finish(int exitcode) {
+      if (isDone()) return;
+      this.exitcode = exitcode;
+      done.countDown();
+    }
+  }
+
+  private final String su;
+  /** Where the output files of the scripts go */
+  private final String dir;
+  private final LinkedBlockingQueue<Command> queue = new LinkedBlockingQueue<Command>();
+  private final Timer watchdog = new Timer("RootShell watchdog", true);
+  /** Random per session so that no output is taken for a sentinel */
+  private final String marker = "__GAEPROXY_" + Long.toHexString(new Random().nextLong()) + "_";
+
+  private Thread worker;
+  private volatile Process process;
+  private OutputStream stdin;
+  private BufferedReader stdout;
+  private int sequence = 0;
+
+  /**
+   * @param su the su binary to spawn the shell with
+   * @param dir a directory root may write to, for the output of the scripts
+   */
+  public RootShell(String su, String dir) {
+    this.su = su;
+    this.dir = dir;
+  }
+
+  /**
+   * Queue a script, its output, with stderr, goes to the output if not null
+   *
+   * @param timeout the time the script may run once started, 0 for no limit
+   */
+  public Command submit(String script, StringBuilder output, long timeout) {
+    Command command = new Command(script, output, timeout);
+    synchronized (this) {
+      if (worker == null) {
+        worker = new Thread("RootShell") {
+          @Override
+          public void run() {
+            work();
+          }
+        };
+        worker.setDaemon(true);
+        worker.start();
+      }
+    }
+    queue.add(command);
+    return command;
+  }
+
+  /** Run a script and wait for it, see {@link #submit} */
+  public int run(String script, StringBuilder output, long timeout) {
+    return submit(script, output, timeout).waitFor();
+  }
+
+  private void work() {
+    while (true) {
+      Command command;
+      try {
+        command = queue.poll(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (command == null) {
+          close();
+          command = queue.take();
+        }
+      } catch (InterruptedException e) {
+        return;
+      }
+      execute(command);
+    }
+  }
+
+  private void execute(final Command command) {
+    if (process == null && !spawn()) {
+      command.finish(-1);
+      return;
+    }
+    final Process running = process;
+    TimerTask kill = null;
+    if (command.timeout > 0) {
+      kill = new TimerTask() {
+        @Override
+        public void run() {
+          if (command.isDone()) return;
+          Log.w(TAG, "Root command timed out, restarting the shell");
+          command.finish(Utils.TIME_OUT);
+          running.destroy();
+        }
+      };
+      watchdog.schedule(kill, command.timeout);
+    }
+    int id = sequence++;
+    String sentinel = marker + id + " ";
+    String file = new File(dir, FILE_PREFIX + id + ".out").getPath();
+    try {
+      // a subshell so that an exit or a cd stays there, without our stdin
+      String framed = "(\n" + command.script + "\n) </dev/null >" + file + " 2>&1\n__rc=$?\n"
+          + "cat " + file + " 2>/dev/null\nrm -f " + file + "\necho \"\"\necho \""
+          + sentinel + "$__rc\"\n";
+      stdin.write(framed.getBytes());
+      stdin.flush();
+      String line;
+      boolean first = true;
+      while ((line = stdout.readLine()) != null) {
+        int found = line.indexOf(sentinel);
+        if (found >= 0) {
+          command.finish(parseExitCode(line.substring(found + sentinel.length())));
+          return;
+        }
+        if (command.output != null) {
+          // the empty echo ends the last line of the output, it is not part of it
+          if (!first) command.output.append('\n');
+          command.output.append(line);
+        }
+        first = false;
+      }
+      throw new IOException("Root shell exited");
+    } catch (IOException e) {
+      if (!command.isDone()) Log.e(TAG, "Root shell failed", e);
+      command.finish(-1);
+      close();
+    } finally {
+      if (kill != null) kill.cancel();
+    }
+  }
+
+  private boolean spawn() {
+    try {
+      ProcessBuilder builder = new ProcessBuilder(su);
+      builder.redirectErrorStream(true);
+      process = builder.start();
+      stdin = process.getOutputStream();
+      stdout = new BufferedReader(new InputStreamReader(process.getInputStream()));
+      // left over by a shell killed on a timeout
+      stdin.write(("rm -f " + new File(dir, FILE_PREFIX).getPath() + "*\n").getBytes());
+      stdin.flush();
+      return true;
+    } catch (IOException e) {
+      Log.e(TAG, "Cannot start " + su, e);
+      if (process != null) process.destroy();
+      process = null;
+      return false;
+    }
+  }
+
+  private void close() {
+    Process p = process;
+    if (p == null) return;
+    process = null;
+    try {
+      stdin.write("exit\n".getBytes());
+      stdin.flush();
+    } catch (IOException ignored) {
+      // Nothing
+    }
+    p.destroy();
+    try {
+      stdin.close();
+    } catch (IOException ignored) {
+      // Nothing
+    }
+    try {
+      stdout.close();
+    } catch (IOException ignored) {
+      // Nothing
+    }
+  }
+
+  private static int parseExitCode(String code) {
+    try {
+      return Integer.parseInt(code.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
@@ -19,11 +19,10 @@ import java.util.ArrayList;
 
 public class Utils {
 
-  /** Internal thread used to execute scripts (as root or not). */
+  /** Internal thread used to execute scripts without root, those go to the {@link RootShell} */
   private static final class ScriptRunner extends Thread {
     private final String scripts;
     private final StringBuilder result;
-    private final boolean asroot;
     public int exitcode = -1;
 
     private int[] pid = new int[1];
@@ -46,12 +45,10 @@ public class Utils {
      *
      * @param scripts scripts to run
      * @param res response output
-     * @param asroot if true, executes the scripts as root
      */
-    public ScriptRunner(String scripts, StringBuilder res, boolean asroot) {
+    public ScriptRunner(String scripts, StringBuilder res) {
       this.scripts = scripts;
       this.result = res;
-      this.asroot = asroot;
     }
 
     private FileDescriptor createSubprocess(int[] processId, String cmd) {
@@ -116,11 +113,7 @@ public class Utils {
 
       pid[0] = -1;
       try {
-        if (this.asroot) {
-          pipe = createSubprocess(pid, root_shell);
-        } else {
-          pipe = createSubprocess(pid, getShell());
-        }
+        pipe = createSubprocess(pid, getShell());
 
         if (pid[0] != -1) {
           exitcode = Exec.waitFor(pid[0]);
@@ -173,6 +166,8 @@ public class Utils {
   private static int isRoot = -1;
   private static String shell = null;
   private static String root_shell = null;
+  /** The session every root script goes through */
+  private static RootShell rootShell = null;
   private static String iptables = null;
 
   private static String data_path = null;
@@ -279,6 +274,15 @@ public class Utils {
     return iptables;
   }
 
+  /** @return the iptables-restore next to the iptables in use, or null if there is none */
+  public static String getIptablesRestore() {
+    String iptables = getIptables();
+    // from the PATH, a missing one shows in the exit code
+    if (iptables.indexOf('/') < 0) return "iptables-restore";
+    File restore = new File(iptables + "-restore");
+    return restore.exists() ? restore.getPath() : null;
+  }
+
   private static String getShell() {
     if (shell == null) {
       shell = DEFAULT_SHELL;
@@ -398,9 +402,29 @@ public class Utils {
     return true;
   }
 
-  private synchronized static int runScript(String script, StringBuilder res, long timeout,
-      boolean asroot) {
-    final ScriptRunner runner = new ScriptRunner(script, res, asroot);
+  /** @return the exit code of the command run as root, or {@link #TIME_OUT} */
+  public static int runRootScript(String command, int timeout) {
+
+    if (!isRoot()) return -1;
+
+    Log.d(TAG, command);
+
+    return runScript(command, null, timeout, true);
+  }
+
+  private static int runScript(String script, StringBuilder res, long timeout, boolean asroot) {
+    if (asroot) return getRootShell().run(script, res, timeout);
+    return runUserScript(script, res, timeout);
+  }
+
+  private static synchronized RootShell getRootShell() {
+    // root_shell is picked by isRoot(), which every root script is behind
+    if (rootShell == null) rootShell = new RootShell(root_shell, GAEProxyService.BASE);
+    return rootShell;
+  }
+
+  private synchronized static int runUserScript(String script, StringBuilder res, long timeout) {
+    final ScriptRunner runner = new ScriptRunner(script, res);
     runner.start();
     try {
       if (timeout > 0) {
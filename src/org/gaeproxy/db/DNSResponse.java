@@ -9,14 +9,17 @@ public class DNSResponse implements Comparable<DNSResponse> {
   // id is generated by the database and set on the object automagically
   @DatabaseField(id = true)
   private String request;
-  @DatabaseField(columnName = "timestamp")
+  @DatabaseField(columnName = "timestamp", index = true)
   private long timestamp = System.currentTimeMillis();
-  @DatabaseField(columnName = "reqtimestamp")
+  @DatabaseField(columnName = "reqtimestamp", index = true)
   private long reqTimestamp = System.currentTimeMillis();
   @DatabaseField(columnName = "reqtimes")
   private int reqTimes = 0;
-  @DatabaseField(columnName = "address")
+  @DatabaseField(columnName = "address", index = true)
   private String address;
+  /** TTL of the answer given by the upstream in seconds, 0 if unknown */
+  @DatabaseField(columnName = "ttl")
+  private int ttl = 0;
 
   public DNSResponse() {
     this.request = String.valueOf(System.currentTimeMillis());
@@ -84,10 +87,29 @@ public class DNSResponse implements Comparable<DNSResponse> {
     return address;
   }
 
+  /** Count requests answered without going through {@link #getAddress()} */
+  public void addReqTimes(int times, long reqTimestamp) {
+    this.reqTimes += times;
+    if (reqTimestamp > this.reqTimestamp) this.reqTimestamp = reqTimestamp;
+  }
+
+  /** @return the address, without counting a request */
+  public String peekAddress() {
+    return address;
+  }
+
   public void setAddress(String address) {
     this.address = address;
   }
 
+  public int getTtl() {
+    return ttl;
+  }
+
+  public void setTtl(int ttl) {
+    this.ttl = ttl;
+  }
+
   @Override
   public int compareTo(DNSResponse dnsResponse) {
     return (int) (reqTimestamp - dnsResponse.getReqTimestamp());
@@ -21,7 +21,9 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
   private static final String DATABASE_NAME = "gaeproxy.db";
   // any time you make changes to your database objects, you may have to
   // increase the database version
-  private static final int DATABASE_VERSION = 5;
+  private static final int DATABASE_VERSION = 7;
+  // oldest version migrated in place, older databases are recreated
+  private static final int FIRST_MIGRATED_VERSION = 5;
 
   // the DAO object we use to access the SimpleData table
   private Dao<DNSResponse, String> mDnsCacheDao = null;
@@ -82,24 +84,44 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
 
   /**
    * This is called when your application is upgraded and it has a higher
-   * version number. This allows you to adjust the various data to match the
-   * new version number.
+   * version number. Each step migrates the data of one version to the next,
+   * so the DNS cache and the proxied apps survive the upgrade.
    */
   @Override
+  @SuppressWarnings("fallthrough")
   public void onUpgrade(SQLiteDatabase db, ConnectionSource connectionSource, int oldVersion,
       int newVersion) {
+    Log.i(DatabaseHelper.class.getName(), "onUpgrade " + oldVersion + " -> " + newVersion);
+    if (oldVersion < FIRST_MIGRATED_VERSION) {
+      recreate(db, connectionSource);
+      return;
+    }
+    // fall through from the old version up to the new one
     switch (oldVersion) {
-      default:
-        try {
-          Log.i(DatabaseHelper.class.getName(), "onUpgrade");
-          TableUtils.dropTable(connectionSource, DNSResponse.class, true);
-          TableUtils.dropTable(connectionSource, App.class, true);
-          // after we drop the old databases, we create the new ones
-          onCreate(db, connectionSource);
-        } catch (SQLException e) {
-          Log.e(DatabaseHelper.class.getName(), "Can't drop databases", e);
-          throw new RuntimeException(e);
-        }
+      case 5:
+        // indexes for the reverse lookups, the expiry and the eviction
+        db.execSQL("CREATE INDEX IF NOT EXISTS dnsresponse_address_idx"
+            + " ON dnsresponse (address)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS dnsresponse_timestamp_idx"
+            + " ON dnsresponse (timestamp)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS dnsresponse_reqtimestamp_idx"
+            + " ON dnsresponse (reqtimestamp)");
+        // fall through
+      case 6:
+        // TTL of the upstream answers, unknown for the rows cached before
+        db.execSQL("ALTER TABLE dnsresponse ADD COLUMN ttl INTEGER DEFAULT 0");
+    }
+  }
+
+  private void recreate(SQLiteDatabase db, ConnectionSource connectionSource) {
+    try {
+      TableUtils.dropTable(connectionSource, DNSResponse.class, true);
+      TableUtils.dropTable(connectionSource, App.class, true);
+      // after we drop the old databases, we create the new ones
+      onCreate(db, connectionSource);
+    } catch (SQLException e) {
+      Log.e(DatabaseHelper.class.getName(), "Can't drop databases", e);
+      throw new RuntimeException(e);
     }
   }
 }
@@ -0,0 +1,71 @@
+package android.util;
+
+/**
+ * Stand-in for the Android logger in the plain JVM tests, ahead of the stub
+ * of the android artifact on the test classpath, which throws on any call.
+ * Warnings and errors go to stderr, the rest is dropped.
+ */
+public final class Log {
+
+  public static final int VERBOSE = 2;
+  public static final int DEBUG = 3;
+  public static final int INFO = 4;
+  public static final int WARN = 5;
+  public static final int ERROR = 6;
+
+  private Log() {
+  }
+
+  public static boolean isLoggable(String tag, int level) {
+    return false;
+  }
+
+  public static int v(String tag, String msg) {
+    return 0;
+  }
+
+  public static int v(String tag, String msg, Throwable tr) {
+    return 0;
+  }
+
+  public static int d(String tag, String msg) {
+    return 0;
+  }
+
+  public static int d(String tag, String msg, Throwable tr) {
+    return 0;
+  }
+
+  public static int i(String tag, String msg) {
+    return 0;
+  }
+
+  public static int i(String tag, String msg, Throwable tr) {
+    return 0;
+  }
+
+  public static int w(String tag, String msg) {
+    return print("W", tag, msg, null);
+  }
+
+  public static int w(String tag, String msg, Throwable tr) {
+    return print("W", tag, msg, tr);
+  }
+
+  public static int w(String tag, Throwable tr) {
+    return print("W", tag, "", tr);
+  }
+
+  public static int e(String tag, String msg) {
+    return print("E", tag, msg, null);
+  }
+
+  public static int e(String tag, String msg, Throwable tr) {
+    return print("E", tag, msg, tr);
+  }
+
+  private static int print(String level, String tag, String msg, Throwable tr) {
+    System.err.println(level + "/" + tag + ": " + msg + (tr == null ? "" : " (" + tr + ")"));
+    return 0;
+  }
+}
@@ -0,0 +1,136 @@
+package org.gaeproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+/**
+ * Aggregates the ranges shipped in chn_list and reports the rules each way
+ * of bypassing them takes: one rule per range as before, one per merged
+ * block without ipset, or a single set match. The rules a connection walks
+ * are counted over random addresses, as iptables tries them in order, and
+ * the aggregation itself is timed.
+ */
+public class ChnRangesBenchmark {
+
+  private static final String STRINGS = "res/values/strings.xml";
+  private static final int WARMUP = 2000;
+  private static final int ROUNDS = 20000;
+  private static final int SAMPLES = 100000;
+
+  @Test
+  public void aggregateShippedRanges() throws IOException {
+    String[] ranges = readChnList();
+    assertTrue("no chn_list in " + STRINGS, ranges.length > 0);
+    List<String> blocks = ChnRanges.aggregate(ranges);
+    assertTrue(blocks.size() <= ranges.length);
+
+    // the same addresses, each one in a single block
+    Random random = new Random(42);
+    List<long[]> before = parse(ranges);
+    List<long[]> after = parse(blocks.toArray(new String[blocks.size()]));
+    assertEquals(size(merge(before)), size(after));
+    long walkedBefore = 0;
+    long walkedAfter = 0;
+    for (int i = 0; i < SAMPLES; i++) {
+      long ip = random.nextLong() & 0xffffffffL;
+      int first = walk(before, ip);
+      int second = walk(after, ip);
+      assertEquals(first < before.size(), second < after.size());
+      walkedBefore += first;
+      walkedAfter += second;
+    }
+
+    int sink = 0;
+    for (int i = 0; i < WARMUP; i++) {
+      sink += ChnRanges.aggregate(ranges).size();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      sink += ChnRanges.aggregate(ranges).size();
+    }
+    long elapsed = (System.nanoTime() - start) / ROUNDS;
+    if (sink == 42) System.out.println();
+
+    System.out.println("ChnRangesBenchmark: " + ranges.length + " ranges as " + blocks.size()
+        + " blocks, aggregated in " + elapsed / 1000 + " us; rules " + ranges.length + " -> "
+        + blocks.size() + ", or 1 with ipset; rules walked per connection "
+        + walkedBefore / (double) SAMPLES + " -> " + walkedAfter / (double) SAMPLES);
+  }
+
+  /** @return the items of the chn_list array */
+  private static String[] readChnList() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    BufferedReader in =
+        new BufferedReader(new InputStreamReader(new FileInputStream(STRINGS), "UTF-8"));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        sb.append(line).append('\n');
+      }
+    } finally {
+      in.close();
+    }
+    Matcher array = Pattern.compile("<string-array name=\"chn_list\">(.*?)</string-array>",
+        Pattern.DOTALL).matcher(sb);
+    List<String> items = new ArrayList<String>();
+    if (array.find()) {
+      Matcher item = Pattern.compile("<item>([^<]*)</item>").matcher(array.group(1));
+      while (item.find()) {
+        items.add(item.group(1).trim());
+      }
+    }
+    return items.toArray(new String[items.size()]);
+  }
+
+  private static List<long[]> parse(String[] ranges) {
+    List<long[]> parsed = new ArrayList<long[]>();
+    for (String range : ranges) {
+      long[] r = DNSBlackList.parseRange(range);
+      assertTrue("malformed range " + range, r != null);
+      parsed.add(r);
+    }
+    return parsed;
+  }
+
+  /** @return the ranges merged, they come sorted in chn_list */
+  private static List<long[]> merge(List<long[]> ranges) {
+    List<long[]> merged = new ArrayList<long[]>();
+    for (long[] r : ranges) {
+      long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+      if (last != null && r[0] <= last[1] + 1) {
+        last[1] = Math.max(last[1], r[1]);
+      } else {
+        merged.add(new long[] { r[0], r[1] });
+      }
+    }
+    return merged;
+  }
+
+  private static long size(List<long[]> ranges) {
+    long total = 0;
+    for (long[] r : ranges) {
+      total += r[1] - r[0] + 1;
+    }
+    return total;
+  }
+
+  /** @return the rules tried before the first match, all of them if none matches */
+  private static int walk(List<long[]> rules, long ip) {
+    for (int i = 0; i < rules.size(); i++) {
+      long[] r = rules.get(i);
+      if (ip >= r[0] && ip <= r[1]) return i;
+    }
+    return rules.size();
+  }
+}
@@ -0,0 +1,128 @@
+package org.gaeproxy;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Times the parse and answer of a query with {@link DNSMessage} against the
+ * parseDomain and createDNSResponse it replaced, copied below as they were.
+ */
+public class DNSMessageBenchmark {
+
+  private static final int WARMUP = 20000;
+  private static final int ROUNDS = 200000;
+
+  private static final int DNS_PKG_HEADER_LEN = 12;
+  private static final int[] DNS_HEADERS = { 0, 0, 0x81, 0x80, 0, 0, 0, 0, 0, 0, 0, 0 };
+  private static final int[] DNS_PAYLOAD = {
+      0xc0, 0x0c, 0x00, 0x01, 0x00, 0x01, 0x00, 0x00, 0x00, 0x3c, 0x00, 0x04
+  };
+
+  private static final byte[] QUERY =
+      DNSMessageTest.query(0x1234, 0x0100, "www.google-analytics.com", DNSMessage.TYPE_A, 0);
+  private static final byte[] ADDRESS = { 74, 125, (byte) 128, 18 };
+
+  @Test
+  public void compareWithLegacy() {
+    assertEquals(legacyGetRequestDomain(QUERY), codecRound(new DNSMessage(), new byte[512]));
+
+    long legacy = time(true);
+    long codec = time(false);
+    System.out.println("DNSMessageBenchmark: legacy " + legacy + " ns/op, DNSMessage " + codec
+        + " ns/op");
+  }
+
+  /** @return the mean time of a round, after a warmup */
+  private static long time(boolean legacy) {
+    DNSMessage msg = new DNSMessage();
+    byte[] out = new byte[512];
+    int sink = 0;
+    for (int i = 0; i < WARMUP; i++) {
+      sink += legacy ? legacyRound() : codecRound(msg, out).length();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      sink += legacy ? legacyRound() : codecRound(msg, out).length();
+    }
+    long elapsed = System.nanoTime() - start;
+    if (sink == 42) System.out.println();
+    return elapsed / ROUNDS;
+  }
+
+  private static int legacyRound() {
+    String domain = legacyGetRequestDomain(QUERY);
+    return domain.length() + legacyCreateDNSResponse(QUERY, ADDRESS).length;
+  }
+
+  private static String codecRound(DNSMessage msg, byte[] out) {
+    msg.parse(QUERY, 0, QUERY.length);
+    String domain = msg.getQuestionName();
+    int pos = msg.writeResponse(out, DNSMessage.RCODE_NOERROR);
+    pos = msg.writeAddress(out, pos, out.length, ADDRESS, 0, 4, 60);
+    msg.finish(out, pos);
+    return domain;
+  }
+
+  private static byte[] legacyCreateDNSResponse(byte[] quest, byte[] ips) {
+    int start = 0;
+    byte[] response = new byte[4096];
+
+    for (int val : DNS_HEADERS) {
+      response[start] = (byte) val;
+      start++;
+    }
+
+    System.arraycopy(quest, 0, response, 0, 2);
+    System.arraycopy(quest, 4, response, 4, 2);
+    System.arraycopy(quest, 4, response, 6, 2);
+    System.arraycopy(quest, DNS_PKG_HEADER_LEN, response, start,
+        quest.length - DNS_PKG_HEADER_LEN);
+    start += quest.length - DNS_PKG_HEADER_LEN;
+
+    for (int val : DNS_PAYLOAD) {
+      response[start] = (byte) val;
+      start++;
+    }
+
+    for (byte ip : ips) {
+      response[start] = ip;
+      start++;
+    }
+
+    byte[] result = new byte[start];
+    System.arraycopy(response, 0, result, 0, start);
+
+    return result;
+  }
+
+  private static String legacyGetRequestDomain(byte[] request) {
+    String requestDomain = "";
+    int reqLength = request.length;
+    if (reqLength > 13) {
+      byte[] question = new byte[reqLength - 12];
+      System.arraycopy(request, 12, question, 0, reqLength - 12);
+      requestDomain = legacyParseDomain(question);
+      if (requestDomain.length() > 1) {
+        requestDomain = requestDomain.substring(0, requestDomain.length() - 1);
+      }
+    }
+    return requestDomain;
+  }
+
+  private static String legacyParseDomain(byte[] request) {
+    String result = "";
+    int length = request.length;
+    int partLength = request[0];
+    if (partLength == 0) return result;
+    try {
+      byte[] left = new byte[length - partLength - 1];
+      System.arraycopy(request, partLength + 1, left, 0, length - partLength - 1);
+      result = new String(request, 1, partLength) + ".";
+      result += legacyParseDomain(left);
+    } catch (Exception e) {
+      // as before, the name is cut short
+    }
+    return result;
+  }
+}
@@ -0,0 +1,177 @@
+package org.gaeproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import org.junit.Test;
+
+public class DNSMessageTest {
+
+  /** @return a query for the name, with an OPT record if payloadSize is positive */
+  static byte[] query(int id, int flags, String name, int type, int payloadSize) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeShort(out, id);
+    writeShort(out, flags);
+    writeShort(out, 1);
+    writeShort(out, 0);
+    writeShort(out, 0);
+    writeShort(out, payloadSize > 0 ? 1 : 0);
+    writeName(out, name);
+    writeShort(out, type);
+    writeShort(out, DNSMessage.CLASS_IN);
+    if (payloadSize > 0) {
+      out.write(0);
+      writeShort(out, DNSMessage.TYPE_OPT);
+      writeShort(out, payloadSize);
+      writeShort(out, 0);
+      writeShort(out, 0);
+      writeShort(out, 0);
+    }
+    return out.toByteArray();
+  }
+
+  static void writeName(ByteArrayOutputStream out, String name) {
+    for (String label : name.split("\\.")) {
+      out.write(label.length());
+      out.write(label.getBytes(), 0, label.length());
+    }
+    out.write(0);
+  }
+
+  static void writeShort(ByteArrayOutputStream out, int value) {
+    out.write(value >> 8);
+    out.write(value);
+  }
+
+  static int readShort(byte[] buf, int pos) {
+    return ((buf[pos] & 0xff) << 8) | (buf[pos + 1] & 0xff);
+  }
+
+  @Test
+  public void parsesQuestion() {
+    byte[] q = query(0x1234, 0x0100, "WWW.Example.com", DNSMessage.TYPE_A, 0);
+    DNSMessage msg = new DNSMessage();
+    assertTrue(msg.parse(q, 0, q.length));
+    assertTrue(msg.isQuery());
+    assertEquals(0x1234, msg.getId());
+    assertEquals("www.example.com", msg.getQuestionName());
+    assertEquals(DNSMessage.TYPE_A, msg.getQuestionType());
+    assertEquals(DNSMessage.CLASS_IN, msg.getQuestionClass());
+    assertFalse(msg.hasOpt());
+    assertEquals(DNSMessage.MAX_UDP_SIZE, msg.getMaxResponseSize());
+  }
+
+  @Test
+  public void parsesAtAnOffset() {
+    byte[] q = query(7, 0x0100, "a.b", DNSMessage.TYPE_A, 0);
+    byte[] buf = new byte[q.length + 20];
+    System.arraycopy(q, 0, buf, 10, q.length);
+    DNSMessage msg = new DNSMessage();
+    assertTrue(msg.parse(buf, 10, q.length));
+    assertEquals("a.b", msg.getQuestionName());
+  }
+
+  @Test
+  public void readsEdnsPayloadSize() {
+    byte[] q = query(1, 0x0100, "example.com", DNSMessage.TYPE_AAAA, 4096);
+    DNSMessage msg = new DNSMessage();
+    assertTrue(msg.parse(q, 0, q.length));
+    assertTrue(msg.hasOpt());
+    // capped to what we advertise
+    assertEquals(DNSMessage.EDNS_UDP_SIZE, msg.getMaxResponseSize());
+  }
+
+  @Test
+  public void rejectsTruncatedMessages() {
+    byte[] q = query(1, 0x0100, "example.com", DNSMessage.TYPE_A, 0);
+    DNSMessage msg = new DNSMessage();
+    for (int length = 0; length < q.length; length++) {
+      assertFalse("length " + length, msg.parse(q, 0, length));
+    }
+  }
+
+  @Test
+  public void rejectsPointerLoops() {
+    byte[] q = query(1, 0x0100, "example.com", DNSMessage.TYPE_A, 0);
+    // an answer whose name points at itself
+    byte[] m = new byte[q.length + 12];
+    System.arraycopy(q, 0, m, 0, q.length);
+    m[7] = 1;
+    m[q.length] = (byte) 0xc0;
+    m[q.length + 1] = (byte) q.length;
+    DNSMessage msg = new DNSMessage();
+    assertFalse(msg.parse(m, 0, m.length));
+  }
+
+  @Test
+  public void writesAddresses() {
+    byte[] q = query(0xbeef, 0x0100, "example.com", DNSMessage.TYPE_A, 0);
+    DNSMessage msg = new DNSMessage();
+    assertTrue(msg.parse(q, 0, q.length));
+    byte[] out = new byte[msg.getResponseSize(2, 8)];
+    int pos = msg.writeResponse(out, DNSMessage.RCODE_NOERROR);
+    byte[] addrs = { 1, 2, 3, 4, 5, 6, 7, 8 };
+    pos = msg.writeAddress(out, pos, out.length, addrs, 0, 4, 60);
+    pos = msg.writeAddress(out, pos, out.length, addrs, 4, 4, 60);
+    int length = msg.finish(out, pos);
+
+    assertEquals(0xbeef, readShort(out, 0));
+    assertEquals(0x8180, readShort(out, 2));
+    assertEquals(1, readShort(out, 4));
+    assertEquals(2, readShort(out, 6));
+    assertEquals(q.length + 2 * 16, length);
+    byte[] last = new byte[4];
+    System.arraycopy(out, length - 4, last, 0, 4);
+    assertArrayEquals(new byte[] { 5, 6, 7, 8 }, last);
+  }
+
+  @Test
+  public void truncatesWhatDoesNotFit() {
+    byte[] q = query(1, 0x0100, "example.com", DNSMessage.TYPE_A, 0);
+    DNSMessage msg = new DNSMessage();
+    assertTrue(msg.parse(q, 0, q.length));
+    byte[] out = new byte[DNSMessage.MAX_UDP_SIZE];
+    int pos = msg.writeResponse(out, DNSMessage.RCODE_NOERROR);
+    assertEquals(-1, msg.writeAddress(out, pos, pos + 10, new byte[4], 0, 4, 60));
+    assertTrue((readShort(out, 2) & 0x0200) != 0);
+    assertEquals(0, readShort(out, 6));
+  }
+
+  @Test
+  public void answersMalformedWithFormerr() {
+    byte[] q = query(0x4242, 0x0100, "example.com", DNSMessage.TYPE_A, 0);
+    // the question count says 2, there is only one
+    q[5] = 2;
+    DNSMessage msg = new DNSMessage();
+    assertFalse(msg.parse(q, 0, q.length));
+    byte[] out = new byte[DNSMessage.MAX_UDP_SIZE];
+    assertEquals(DNSMessage.HEADER_LEN, DNSMessage.writeError(q, 0, q.length, out));
+    assertEquals(0x4242, readShort(out, 0));
+    assertEquals(0x8180 | DNSMessage.RCODE_FORMERR, readShort(out, 2));
+    assertEquals(0, readShort(out, 4));
+  }
+
+  @Test
+  public void answersOtherOpcodesWithNotimp() {
+    // opcode 2, status
+    byte[] q = query(9, 0x1100, "example.com", DNSMessage.TYPE_A, 0);
+    DNSMessage msg = new DNSMessage();
+    assertTrue(msg.parse(q, 0, q.length));
+    assertFalse(msg.isQuery());
+    byte[] out = new byte[DNSMessage.MAX_UDP_SIZE];
+    assertEquals(DNSMessage.HEADER_LEN, DNSMessage.writeError(q, 0, q.length, out));
+    assertEquals(DNSMessage.RCODE_NOTIMP, readShort(out, 2) & 0xf);
+    assertEquals(0x1000, readShort(out, 2) & 0x7800);
+  }
+
+  @Test
+  public void neverAnswersResponsesOrFragments() {
+    byte[] out = new byte[DNSMessage.MAX_UDP_SIZE];
+    byte[] r = query(1, 0x8180, "example.com", DNSMessage.TYPE_A, 0);
+    assertEquals(-1, DNSMessage.writeError(r, 0, r.length, out));
+    assertEquals(-1, DNSMessage.writeError(new byte[5], 0, 5, out));
+  }
+}
@@ -0,0 +1,250 @@
+package org.gaeproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class DNSRelayBatchTest {
+
+  private static final List<String> NAMES = Arrays.asList("a.example.com", "b.example.com");
+
+  @Test
+  public void parsesAnswersOfTheNamesAsked() {
+    HashMap<String, String> answers = DNSUpstream.parseBatchAnswers(
+        "a.example.com 1.2.3.4|5.6.7.8\nB.example.com Error\n", NAMES);
+    assertNotNull(answers);
+    assertEquals("1.2.3.4|5.6.7.8", answers.get("a.example.com"));
+    assertEquals(DNSUpstream.CANT_RESOLVE, answers.get("b.example.com"));
+  }
+
+  @Test
+  public void acceptsTtlsAndIpv6() {
+    HashMap<String, String> answers =
+        DNSUpstream.parseBatchAnswers("a.example.com 2001:db8::1|1.2.3.4;300\n", NAMES);
+    assertNotNull(answers);
+    assertEquals(300, DNSUpstream.getTtl(answers.get("a.example.com")));
+  }
+
+  @Test
+  public void mergesIpv4AndIpv6Answers() {
+    assertEquals("1.2.3.4|2001:db8::1;60",
+        DNSUpstream.merge("1.2.3.4;300", "2001:db8::1;60"));
+    assertEquals("1.2.3.4;300", DNSUpstream.merge("1.2.3.4;300", null));
+    assertEquals("1.2.3.4;300", DNSUpstream.merge("1.2.3.4;300", DNSUpstream.CANT_RESOLVE));
+    assertEquals("2001:db8::1;60", DNSUpstream.merge(null, "2001:db8::1;60"));
+    assertEquals("1.2.3.4|2001:db8::1;60", DNSUpstream.merge("1.2.3.4", "2001:db8::1;60"));
+  }
+
+  @Test
+  public void rejectsWhatIsNotAnAnswer() {
+    assertNull(DNSUpstream.parseBatchAnswers("<html> <body>Error</body> </html>", NAMES));
+    assertNull(DNSUpstream.parseBatchAnswers("c.example.com 1.2.3.4", NAMES));
+    assertNull(DNSUpstream.parseBatchAnswers("a.example.com not an address", NAMES));
+    assertNull(DNSUpstream.parseBatchAnswers("a.example.com 1.2.3.4;soon", NAMES));
+    assertNull(DNSUpstream.parseBatchAnswers("\n\n", NAMES));
+    assertNull(DNSUpstream.parseBatchAnswers(null, NAMES));
+  }
+
+  @Test
+  public void resolvesBatchesFromTheStandIn() throws Exception {
+    RelayStandIn relay = new RelayStandIn();
+    relay.put("a.example.com", "1.2.3.4");
+    DNSRelayClient client = new DNSRelayClient("127.0.0.1", relay.getPort(), "localhost", 2000);
+    try {
+      String[] response = get(client, "/lookup.php?hosts=" + RelayStandIn.encode(
+          "a.example.com,b.example.com"));
+      assertEquals("200", response[0]);
+      HashMap<String, String> answers = DNSUpstream.parseBatchAnswers(response[1], NAMES);
+      assertNotNull(answers);
+      assertEquals("1.2.3.4", answers.get("a.example.com"));
+      assertEquals(DNSUpstream.CANT_RESOLVE, answers.get("b.example.com"));
+
+      response = get(client, "/lookup.php?host=" + RelayStandIn.encode("a.example.com"));
+      assertEquals("1.2.3.4", response[1]);
+    } finally {
+      client.close();
+      relay.close();
+    }
+  }
+
+  @Test
+  public void errorPagesAreNotBatchAnswers() throws Exception {
+    RelayStandIn relay = new RelayStandIn();
+    relay.setBatch(RelayStandIn.Batch.ERROR_PAGE);
+    DNSRelayClient client = new DNSRelayClient("127.0.0.1", relay.getPort(), "localhost", 2000);
+    try {
+      String[] response = get(client, "/lookup.php?hosts=" + RelayStandIn.encode(
+          "a.example.com,b.example.com"));
+      assertEquals("200", response[0]);
+      assertNull(DNSUpstream.parseBatchAnswers(response[1], NAMES));
+    } finally {
+      client.close();
+      relay.close();
+    }
+  }
+
+  @Test
+  public void answersConcurrentRequestsWhileConnecting() throws Exception {
+    final RelayStandIn relay = new RelayStandIn();
+    relay.put("a.example.com", "1.2.3.4");
+    final DNSRelayClient client =
+        new DNSRelayClient("127.0.0.1", relay.getPort(), "localhost", 2000);
+    final String path = "/lookup.php?host=" + RelayStandIn.encode("a.example.com");
+    final AtomicInteger answered = new AtomicInteger();
+    Thread[] threads = new Thread[16];
+    try {
+      for (int i = 0; i < threads.length; i++) {
+        threads[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              if ("1.2.3.4".equals(get(client, path)[1])) answered.incrementAndGet();
+            } catch (Throwable e) {
+              // counted as unanswered
+            }
+          }
+        };
+        threads[i].start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertEquals(threads.length, answered.get());
+    } finally {
+      client.close();
+      relay.close();
+    }
+  }
+
+  @Test
+  public void failsRequestsSentWhileTheReaderIsIdle() throws Exception {
+    RelayStandIn relay = new RelayStandIn();
+    relay.put("a.example.com", "1.2.3.4");
+    DNSRelayClient client = new DNSRelayClient("127.0.0.1", relay.getPort(), "localhost", 300);
+    String path = "/lookup.php?host=" + RelayStandIn.encode("a.example.com");
+    try {
+      assertEquals("1.2.3.4", get(client, path)[1]);
+      relay.setSilent(true);
+      long start = System.currentTimeMillis();
+      final CountDownLatch failed = new CountDownLatch(1);
+      client.get(path, new DNSRelayClient.Callback() {
+        @Override
+        public void onResponse(int status, String body) {
+        }
+
+        @Override
+        public void onFailure(IOException error) {
+          failed.countDown();
+        }
+      });
+      assertTrue("never failed", failed.await(5, TimeUnit.SECONDS));
+      // due after one timeout, the reader waits idle for one timeout at most
+      long elapsed = System.currentTimeMillis() - start;
+      assertTrue("failed after " + elapsed + " ms", elapsed < 2 * 300 + 200);
+    } finally {
+      client.close();
+      relay.close();
+    }
+  }
+
+  @Test
+  public void batchesLookupsWithinTheWindow() throws Exception {
+    RelayStandIn relay = new RelayStandIn();
+    relay.put("a.example.com", "1.2.3.4");
+    DNSRelayUpstream upstream = new DNSRelayUpstream("127.0.0.1", relay.getPort(), "localhost",
+        2000);
+    try {
+      Map<String, String> answers = resolve(upstream, "a.example.com", "b.example.com");
+      assertEquals("1.2.3.4", answers.get("a.example.com"));
+      assertEquals(DNSUpstream.CANT_RESOLVE, answers.get("b.example.com"));
+      assertEquals(1, relay.batchRequests.get());
+      assertEquals(0, relay.singleRequests.get());
+      assertTrue(upstream.isBatchSupported());
+    } finally {
+      upstream.close();
+      relay.close();
+    }
+  }
+
+  @Test
+  public void fallsBackToSingleLookupsWithoutBatches() throws Exception {
+    RelayStandIn relay = new RelayStandIn();
+    relay.setBatch(RelayStandIn.Batch.NOT_FOUND);
+    relay.put("a.example.com", "1.2.3.4");
+    relay.put("b.example.com", "5.6.7.8");
+    DNSRelayUpstream upstream = new DNSRelayUpstream("127.0.0.1", relay.getPort(), "localhost",
+        2000);
+    try {
+      Map<String, String> answers = resolve(upstream, "a.example.com", "b.example.com");
+      assertEquals("1.2.3.4", answers.get("a.example.com"));
+      assertEquals("5.6.7.8", answers.get("b.example.com"));
+      assertEquals(1, relay.batchRequests.get());
+      assertEquals(2, relay.singleRequests.get());
+      assertFalse(upstream.isBatchSupported());
+
+      // no batch is tried again
+      answers = resolve(upstream, "a.example.com", "c.example.com");
+      assertEquals("1.2.3.4", answers.get("a.example.com"));
+      assertEquals(DNSUpstream.CANT_RESOLVE, answers.get("c.example.com"));
+      assertEquals(1, relay.batchRequests.get());
+      assertEquals(4, relay.singleRequests.get());
+    } finally {
+      upstream.close();
+      relay.close();
+    }
+  }
+
+  /** @return the answers of the upstream, resolving the names at once */
+  private static Map<String, String> resolve(DNSRelayUpstream upstream, String... names)
+      throws Exception {
+    final Map<String, String> answers = new ConcurrentHashMap<String, String>();
+    final CountDownLatch done = new CountDownLatch(names.length);
+    for (final String name : names) {
+      upstream.resolve(name, null, new DNSUpstream.Callback() {
+        @Override
+        public void onResult(DNSUpstream from, String answer) {
+          if (answer != null) answers.put(name, answer);
+          done.countDown();
+        }
+      });
+    }
+    done.await(5, TimeUnit.SECONDS);
+    assertEquals(names.length, answers.size());
+    return answers;
+  }
+
+  /** @return the status and body of a request through the client */
+  private static String[] get(DNSRelayClient client, String path) throws Exception {
+    final String[] result = new String[2];
+    final CountDownLatch done = new CountDownLatch(1);
+    client.get(path, new DNSRelayClient.Callback() {
+      @Override
+      public void onResponse(int status, String body) {
+        result[0] = String.valueOf(status);
+        result[1] = body;
+        done.countDown();
+      }
+
+      @Override
+      public void onFailure(IOException error) {
+        done.countDown();
+      }
+    });
+    done.await(5, TimeUnit.SECONDS);
+    assertNotNull("no response", result[0]);
+    return result;
+  }
+}
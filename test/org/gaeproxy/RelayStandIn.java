@@ -0,0 +1,147 @@
+package org.gaeproxy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * A local stand-in for the lookup.php relay, serving keep-alive HTTP/1.1.
+ * It answers "?host=" with the answer of one name and "?hosts=" with one
+ * "domain answer" line per name, both double Base64 encoded like the relay
+ * expects. Batching can be turned off, or replaced by an HTML error page
+ * served with 200, like some hosting front ends do.
+ */
+public class RelayStandIn {
+
+  /** What "?hosts=" gets */
+  public enum Batch {
+    SUPPORTED, NOT_FOUND, ERROR_PAGE
+  }
+
+  private final ServerSocket server;
+  private final HashMap<String, String> answers = new HashMap<String, String>();
+  private volatile Batch batch = Batch.SUPPORTED;
+  private volatile boolean silent = false;
+  public final AtomicInteger singleRequests = new AtomicInteger();
+  public final AtomicInteger batchRequests = new AtomicInteger();
+
+  public RelayStandIn() throws IOException {
+    server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    Thread accept = new Thread("RelayStandIn") {
+      @Override
+      public void run() {
+        while (!server.isClosed()) {
+          try {
+            final Socket socket = server.accept();
+            new Thread() {
+              @Override
+              public void run() {
+                serve(socket);
+              }
+            }.start();
+          } catch (IOException e) {
+            return;
+          }
+        }
+      }
+    };
+    accept.setDaemon(true);
+    accept.start();
+  }
+
+  public int getPort() {
+    return server.getLocalPort();
+  }
+
+  public synchronized void put(String domain, String answer) {
+    answers.put(domain, answer);
+  }
+
+  public void setBatch(Batch batch) {
+    this.batch = batch;
+  }
+
+  /** Read the requests without ever answering them, like a stalled relay */
+  public void setSilent(boolean silent) {
+    this.silent = silent;
+  }
+
+  public void close() throws IOException {
+    server.close();
+  }
+
+  /** @return the relay encoding of a name, or of names joined with ',' */
+  public static String encode(String names) {
+    String once = new String(Base64.encodeBase64(names.getBytes(), false));
+    return new String(Base64.encodeBase64(once.getBytes(), false));
+  }
+
+  private static String decode(String encoded) {
+    return new String(Base64.decodeBase64(Base64.decodeBase64(encoded.getBytes())));
+  }
+
+  private synchronized String answer(String domain) {
+    String answer = answers.get(domain);
+    return answer != null ? answer : DNSUpstream.CANT_RESOLVE;
+  }
+
+  private void serve(Socket socket) {
+    try {
+      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+      OutputStream out = socket.getOutputStream();
+      String requestLine;
+      while ((requestLine = in.readLine()) != null) {
+        String line;
+        while ((line = in.readLine()) != null && line.length() > 0) {
+          // headers are not looked at
+        }
+        if (silent) continue;
+        String path = requestLine.split(" ")[1];
+        int status = 200;
+        String body;
+        if (path.startsWith("/lookup.php?hosts=")) {
+          batchRequests.incrementAndGet();
+          if (batch == Batch.NOT_FOUND) {
+            status = 404;
+            body = "Not Found";
+          } else if (batch == Batch.ERROR_PAGE) {
+            body = "<html> <head><title>Service unavailable</title></head>\n"
+                + "<body> Try again later </body> </html>\n";
+          } else {
+            StringBuilder sb = new StringBuilder();
+            for (String domain : decode(path.substring(18)).split(",")) {
+              sb.append(domain).append(' ').append(answer(domain)).append('\n');
+            }
+            body = sb.toString();
+          }
+        } else if (path.startsWith("/lookup.php?host=")) {
+          singleRequests.incrementAndGet();
+          body = answer(decode(path.substring(17)));
+        } else {
+          status = 404;
+          body = "Not Found";
+        }
+        byte[] bytes = body.getBytes();
+        out.write(("HTTP/1.1 " + status + " X\r\nContent-Length: " + bytes.length + "\r\n\r\n")
+            .getBytes());
+        out.write(bytes);
+        out.flush();
+      }
+    } catch (IOException e) {
+      // the client went away
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException ignored) {
+        // Nothing
+      }
+    }
+  }
+}